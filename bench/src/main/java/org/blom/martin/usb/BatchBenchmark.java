@@ -0,0 +1,45 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchBenchmark {
+    @Param({ "ps3", "mouse", "synthetic" })
+    public String descriptor;
+
+    @Param({ "4096" })
+    public int reports;
+
+    private ReportDescriptor hrd;
+    private ReportBatch batch;
+    private byte[] buffer;
+    private ByteBuffer direct;
+
+    @Setup public void setup()
+        throws IOException {
+        hrd    = new ReportDescriptor(Descriptors.named(descriptor));
+        batch  = new ReportBatch(hrd, Control.Type.INPUT, reports);
+        buffer = Descriptors.randomReports(hrd, reports, 42);
+        direct = ByteBuffer.allocateDirect(buffer.length);
+
+        direct.put(buffer).clear();
+    }
+
+    @Benchmark public int batchDecode() {
+        return hrd.decode(buffer, 0, buffer.length, batch.clear());
+    }
+
+    @Benchmark public int batchDecodeDirect() {
+        return hrd.decode(direct, 0, buffer.length, batch.clear());
+    }
+}
@@ -0,0 +1,39 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitFieldBenchmark {
+    @Param({ "0:8", "8:16", "32:32", "3:5", "5:12", "7:32" })
+    public String field;
+
+    private byte[] buffer = new byte[64];
+    private int offset;
+    private int length;
+    private int value;
+
+    @Setup public void setup() {
+        new Random(42).nextBytes(buffer);
+
+        offset = Integer.parseInt(field.substring(0, field.indexOf(':')));
+        length = Integer.parseInt(field.substring(field.indexOf(':') + 1));
+        value  = 0x5a5a5a5a;
+    }
+
+    @Benchmark public int peek() {
+        return ReportDescriptor.peek(buffer, offset, length, true);
+    }
+
+    @Benchmark public byte[] poke() {
+        ReportDescriptor.poke(buffer, offset, length, value);
+        return buffer;
+    }
+}
@@ -0,0 +1,75 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class ColumnBenchmark {
+    @Param({ "0:8", "8:16", "3:1", "5:12", "7:32" })
+    public String field;
+
+    // Only unaligned fields of up to four bytes (3:1, 5:12) take the ColumnKernel shift pass
+    @Param({ "scalar", "vector" })
+    public String kernel;
+
+    @Param({ "4096" })
+    public int reports;
+
+    @Param({ "9" })
+    public int stride;
+
+    private byte[] buffer;
+    private ByteBuffer direct;
+    private int[] positions;
+    private int[] column;
+    private int offset;
+    private int length;
+    private boolean vector;
+
+    @Setup public void setup() {
+        buffer    = new byte[reports * stride];
+        direct    = ByteBuffer.allocateDirect(buffer.length);
+        positions = new int[reports];
+        column    = new int[reports];
+        offset    = Integer.parseInt(field.substring(0, field.indexOf(':')));
+        length    = Integer.parseInt(field.substring(field.indexOf(':') + 1));
+        vector    = kernel.equals("vector");
+
+        if (vector && !ColumnKernel.VECTOR) {
+            throw new IllegalStateException("The jdk.incubator.vector kernel is not available");
+        }
+
+        new Random(42).nextBytes(buffer);
+        direct.put(buffer).clear();
+
+        for (int i = 0; i < reports; ++i) {
+            positions[i] = i * stride;
+        }
+    }
+
+    @Benchmark public int[] scalar() {
+        for (int i = 0; i < reports; ++i) {
+            column[i] = BitField.getInt(buffer, positions[i], offset, length, true);
+        }
+
+        return column;
+    }
+
+    @Benchmark public int[] strided() {
+        BitField.getInts(buffer, 0, stride, reports, offset, length, true, column, 0, vector);
+        return column;
+    }
+
+    @Benchmark public int[] stridedDirect() {
+        BitField.getInts(direct, 0, stride, reports, offset, length, true, column, 0, vector);
+        return column;
+    }
+}
@@ -0,0 +1,136 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Collection;
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({ "barcode", "ps3", "media", "keyboard", "mouse", "synthetic" })
+    public String descriptor;
+
+    private ReportDescriptor hrd;
+    private ReportLayout layout;
+    private ReportLayout pruned;
+    private ReportDecoder generated;
+    private ReportField field;
+    private byte[] report;
+    private ByteBuffer direct;
+    private int[] values;
+    private long[] longValues;
+    private double[] physicalValues;
+    private long sum;
+
+    private final ReportDescriptor.Evaluator evaluator = new ReportDescriptor.Evaluator() {
+        @Override public boolean collection(Collection c) {
+            return true;
+        }
+
+        @Override public boolean control(Control c) {
+            return true;
+        }
+
+        @Override public void constant(Control c, int offset) {
+        }
+
+        @Override public void array(Control c, int usageMinimum, int usageMaximum, int offset) {
+            sum += ReportDescriptor.peek(report, position() * 8 + offset, c.reportSize, c.logicalMinimum < 0);
+        }
+
+        @Override public void variable(Control c, int[] usages, int offset) {
+            sum += ReportDescriptor.peek(report, position() * 8 + offset, c.reportSize, c.logicalMinimum < 0);
+        }
+    };
+
+    private final ReportLayout.Sink sink = new ReportLayout.Sink() {
+        @Override public void field(int field, int usage, long value) {
+            sum += value;
+        }
+    };
+
+    @Setup public void setup()
+        throws IOException {
+        hrd = new ReportDescriptor(Descriptors.named(descriptor));
+
+        for (ReportDescriptor.Report r : hrd.reports()) {
+            if (r.types.contains(Control.Type.INPUT) && hrd.layout(r.reportID, Control.Type.INPUT) != null) {
+                layout = hrd.layout(r.reportID, Control.Type.INPUT);
+                break;
+            }
+        }
+
+        for (int i = 0; i < layout.fieldCount() && field == null; ++i) {
+            if (!layout.isArray(i)) {
+                field  = layout.field(i);
+                pruned = hrd.compile(layout.reportID(), Control.Type.INPUT, layout.usage(i));
+            }
+        }
+
+        generated      = DecoderGenerator.specialize(layout);
+        report         = Descriptors.randomReport(hrd, layout, new Random(42));
+        direct         = ByteBuffer.allocateDirect(report.length);
+        values         = new int[layout.fieldCount()];
+        longValues     = new long[layout.fieldCount()];
+        physicalValues = new double[layout.fieldCount()];
+
+        direct.put(report).clear();
+    }
+
+    private int position() {
+        return hrd.isNumbered() ? 1 : 0;
+    }
+
+    @Benchmark public long evaluate() {
+        sum = 0;
+        hrd.evaluate(layout.reportID(), Control.Type.INPUT, evaluator);
+        return sum;
+    }
+
+    @Benchmark public int[] layoutDecode() {
+        return layout.decode(report, position(), values);
+    }
+
+    @Benchmark public int[] dispatchDecode() {
+        return hrd.dispatch(report, 0, report.length, Control.Type.INPUT).decode(report, position(), values);
+    }
+
+    @Benchmark public int[] prunedDecode() {
+        return pruned.decode(report, position(), values);
+    }
+
+    @Benchmark public int[] generatedDecode() {
+        return generated.decode(report, position(), values);
+    }
+
+    @Benchmark public long[] layoutDecodeLong() {
+        return layout.decode(report, position(), longValues);
+    }
+
+    @Benchmark public double[] layoutDecodePhysical() {
+        return layout.decode(report, position(), physicalValues);
+    }
+
+    @Benchmark public int[] layoutDecodeDirect() {
+        return layout.decode(direct, position(), values);
+    }
+
+    @Benchmark public long layoutDecodeSink() {
+        sum = 0;
+        layout.decode(report, position(), sink);
+        return sum;
+    }
+
+    @Benchmark public int fieldRead() {
+        return field.read(report, position());
+    }
+}
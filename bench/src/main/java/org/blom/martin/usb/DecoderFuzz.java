@@ -0,0 +1,1195 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Collection;
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.blom.martin.usb.ReportDescriptor.Report;
+
+// Differential fuzzer: generates random descriptors and reports, decodes them through every backend and
+// compares the results bit for bit against evaluate() and a naive bit-at-a-time reader.
+//
+// ./gradlew :bench:fuzz [-Pfuzz.args='<cases> <seed>']
+public final class DecoderFuzz {
+    private static final int REPORTS = 16;
+
+    // Defining and JIT-compiling a class per layout costs far more than the other checks together,
+    // so only one in GENERATE layouts goes through DecoderGenerator
+    private static final int GENERATE = 8;
+
+    // ParallelDecoder only splits work above 256 rows, so its checks decode a few hundred reports and
+    // run for one in PARALLEL layouts and batches; capture files are written for one in CAPTURE cases
+    private static final int PARALLEL = 4;
+    private static final int CAPTURE  = 16;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        @Override public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "DecoderFuzz");
+
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Random random;
+    private final StringBuilder failures = new StringBuilder();
+    private final ByteBuffer direct = ByteBuffer.allocateDirect(1 << 16);
+
+    private String stage = "generate";
+    private byte[] descriptor;
+    private long reports;
+    private long fields;
+
+    public DecoderFuzz(long seed) {
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args)
+        throws Exception {
+        int  cases = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long seed  = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+
+        System.out.println("Running " + cases + " cases with seed " + seed);
+
+        DecoderFuzz fuzz = new DecoderFuzz(seed);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < cases; ++i) {
+            if (!fuzz.run()) {
+                System.out.print("Case " + i + " " + fuzz.failure());
+                System.exit(1);
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("OK: %d cases, %d reports, %d fields in %.2f s (%.0f cases/s)",
+                                         cases, fuzz.reports, fuzz.fields, seconds, cases / seconds));
+    }
+
+    public boolean run()
+        throws IOException, InterruptedException {
+        stage      = "generate";
+        descriptor = generate();
+
+        try {
+            ReportDescriptor hrd = new ReportDescriptor(descriptor);
+            Map<Control.Type, List<byte[]>> streams = new EnumMap<Control.Type, List<byte[]>>(Control.Type.class);
+
+            for (Control.Type type : Control.Type.values()) {
+                List<byte[]> stream = new ArrayList<byte[]>();
+
+                for (Report report : hrd.reports()) {
+                    if (report.types.contains(type)) {
+                        check(hrd, report.reportID, type, stream);
+                    }
+                }
+
+                if (failures.length() == 0) {
+                    stage = type + " batch";
+                    checkBatch(hrd, type, stream);
+                }
+
+                if (failures.length() != 0) {
+                    break;
+                }
+
+                streams.put(type, stream);
+            }
+
+            if (failures.length() == 0 && random.nextInt(CAPTURE) == 0) {
+                stage = "capture";
+                checkCapture(hrd, streams);
+            }
+        }
+        catch (RuntimeException ex) {
+            StringWriter trace = new StringWriter();
+
+            ex.printStackTrace(new PrintWriter(trace));
+            fail(trace.toString());
+        }
+
+        return failures.length() == 0;
+    }
+
+    // Describes a failed run: the stage that failed, the descriptor and every mismatch
+    public String failure() {
+        return "failed in " + stage + ", descriptor " + Hex.encode(descriptor) + "\n" + failures;
+    }
+
+    // Descriptor generation
+
+    private byte[] generate() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean numbered = random.nextBoolean();
+
+        item(out, 0x04, 0x01);                                // Usage Page (Generic Desktop)
+        item(out, 0x08, 0x02 + random.nextInt(5));            // Usage
+        item(out, 0xa0, 0x01);                                // Collection (Application)
+
+        if (numbered) {
+            item(out, 0x84, 1 + random.nextInt(3));           // Report ID
+        }
+
+        body(out, 0, numbered);
+        item(out, 0xc0, -1);                                  // End Collection
+
+        return out.toByteArray();
+    }
+
+    private void body(ByteArrayOutputStream out, int depth, boolean numbered) {
+        for (int i = 0, items = 1 + random.nextInt(5); i < items; ++i) {
+            int what = random.nextInt(10);
+
+            if (what == 0 && depth < 3) {
+                item(out, 0x08, 1 + random.nextInt(0x40));                // Usage
+                item(out, 0xa0, random.nextInt(3));                       // Collection (Physical/Application/Logical)
+                body(out, depth + 1, numbered);
+                item(out, 0xc0, -1);                                      // End Collection
+            }
+            else if (what == 1) {
+                item(out, 0xa4, -1);                                      // Push
+                control(out);
+                item(out, 0xb4, -1);                                      // Pop
+            }
+            else if (what == 2 && numbered) {
+                item(out, 0x84, 1 + random.nextInt(3));                   // Report ID
+                control(out);
+            }
+            else {
+                control(out);
+            }
+        }
+    }
+
+    private void control(ByteArrayOutputStream out) {
+        int     kind   = random.nextInt(8);
+        int     size   = kind >= 2 && random.nextInt(16) == 0 ? 33 + random.nextInt(32) : size();
+        int     count  = 1 + random.nextInt(size == 1 ? 16 : 6);
+        int     main   = new int[] { 0x80, 0x90, 0xb0 }[random.nextInt(3)];
+        boolean signed = size == 32 || size > 1 && random.nextBoolean();
+        int     page   = new int[] { 0x01, 0x07, 0x09, 0x0c, 0xff00 }[random.nextInt(5)];
+
+        item(out, 0x04, page);                                    // Usage Page
+        item(out, 0x74, size);                                    // Report Size
+        item(out, 0x94, count);                                   // Report Count
+
+        if (size > 32) {
+            // Logical limits hold at most 32 bits, so variables wider than that get the widest range there is
+            item(out, 0x14, signed ? Integer.MIN_VALUE : 0);      // Logical Minimum
+            item(out, 0x24, Integer.MAX_VALUE);                   // Logical Maximum
+        }
+        else if (signed) {
+            item(out, 0x14, -(1 << (size - 1)));
+            item(out, 0x24, (int) ((1L << (size - 1)) - 1));
+        }
+        else {
+            item(out, 0x14, 0);
+            item(out, 0x24, (int) ((1L << size) - 1));
+        }
+
+        if (random.nextInt(4) == 0) {
+            item(out, 0x34, -random.nextInt(100));                // Physical Minimum
+            item(out, 0x44, random.nextInt(1000));                // Physical Maximum
+            item(out, 0x54, random.nextInt(16));                  // Unit Exponent
+        }
+
+        if (kind == 0) {
+            // Padding
+            item(out, main, 0x01);
+        }
+        else if (kind == 1 && random.nextBoolean()) {
+            int usages  = 1 + random.nextInt(6);
+            int minimum = random.nextInt(2);
+
+            // Array of indices into a usage list; ErrorRollOver (1) shows up often enough to hit phantom states
+            for (int u = 0; u < usages; ++u) {
+                item(out, 0x08, random.nextInt(8) == 0 ? 1 : 1 + random.nextInt(0xff));
+            }
+
+            item(out, 0x14, minimum);
+            item(out, 0x24, (int) Math.min(minimum + usages - 1 + random.nextInt(2), (1L << Math.min(size, 31)) - 1));
+            item(out, main, 0x00);
+        }
+        else if (kind == 1) {
+            int min = random.nextInt(0x80);
+
+            // Array of usage indices; unsigned, so the logical range fits the field
+            item(out, 0x14, 0);
+            item(out, 0x24, size >= 31 ? 0xff : (int) ((1L << size) - 1));
+            item(out, 0x18, min);                                 // Usage Minimum
+            item(out, 0x28, min + random.nextInt(0x80));          // Usage Maximum
+            item(out, main, 0x00);
+        }
+        else if (kind == 2) {
+            // Alternative usages inside delimiter sets
+            for (int set = 0, sets = 1 + random.nextInt(3); set < sets; ++set) {
+                item(out, 0xa8, 1);                               // Delimiter (open)
+
+                for (int u = 0, usages = 1 + random.nextInt(3); u < usages; ++u) {
+                    item(out, 0x08, 1 + random.nextInt(0xff));
+                }
+
+                item(out, 0xa8, 0);                               // Delimiter (close)
+            }
+
+            item(out, main, variableFlags());
+        }
+        else if (kind == 3) {
+            int min = 1 + random.nextInt(0x80);
+
+            item(out, 0x18, min);
+            item(out, 0x28, min + random.nextInt(count + 2));
+            item(out, main, variableFlags());
+        }
+        else {
+            for (int u = 0, usages = random.nextInt(count + 1); u < usages; ++u) {
+                item(out, 0x08, 1 + random.nextInt(0xff));
+            }
+
+            item(out, main, variableFlags());
+        }
+    }
+
+    private int size() {
+        switch (random.nextInt(4)) {
+            case 0:  return 1;
+            case 1:  return new int[] { 8, 16, 32 }[random.nextInt(3)];
+            default: return 1 + random.nextInt(32);
+        }
+    }
+
+    private int variableFlags() {
+        // Variable, plus random Relative, Wrap, Nonlinear, No Preferred, Null State and Volatile bits
+        return 0x02 | random.nextInt(0x80) & 0xfc;
+    }
+
+    // Emits a short item with the smallest size that holds value as a signed number; -1 means no data
+    private static void item(ByteArrayOutputStream out, int prefix, int value) {
+        if (value == -1 && (prefix == 0xc0 || prefix == 0xa4 || prefix == 0xb4)) {
+            out.write(prefix);
+        }
+        else if (value >= -0x80 && value <= 0x7f) {
+            out.write(prefix | 1);
+            out.write(value);
+        }
+        else if (value >= -0x8000 && value <= 0x7fff) {
+            out.write(prefix | 2);
+            out.write(value);
+            out.write(value >> 8);
+        }
+        else {
+            out.write(prefix | 3);
+            out.write(value);
+            out.write(value >> 8);
+            out.write(value >> 16);
+            out.write(value >> 24);
+        }
+    }
+
+    // Reference model
+
+    private static final class Reference
+        implements ReportDescriptor.Evaluator {
+        final List<Control> controls = new ArrayList<Control>();
+        final List<int[]>   fields   = new ArrayList<int[]>();   // offset, size, signed, usage, usageMaximum, array
+        final List<int[]>   lists    = new ArrayList<int[]>();   // listed array usages, or null
+
+        @Override public boolean collection(Collection collection) {
+            return true;
+        }
+
+        @Override public boolean control(Control control) {
+            return true;
+        }
+
+        @Override public void constant(Control control, int offset) {
+        }
+
+        @Override public void array(Control control, int usageMinimum, int usageMaximum, int offset) {
+            add(control, offset, usageMinimum, usageMaximum, 1, null);
+        }
+
+        @Override public void array(Control control, int[] usages, int offset) {
+            int minimum = usages.length == 0 ? 0 : Integer.MAX_VALUE;
+            int maximum = usages.length == 0 ? 0 : Integer.MIN_VALUE;
+
+            for (int usage : usages) {
+                minimum = Math.min(minimum, usage);
+                maximum = Math.max(maximum, usage);
+            }
+
+            add(control, offset, minimum, maximum, 1, usages.clone());
+        }
+
+        @Override public void variable(Control control, int[] usages, int offset) {
+            int usage = usages.length == 0 ? 0 : usages[0];
+
+            add(control, offset, usage, usage, 0, null);
+        }
+
+        private void add(Control control, int offset, int usage, int usageMaximum, int array, int[] list) {
+            controls.add(control);
+            fields.add(new int[] { offset, control.reportSize, control.logicalMinimum < 0 ? 1 : 0, usage, usageMaximum, array });
+            lists.add(list);
+        }
+
+        // Builder.select() semantics: a listed or range usage of the field is one of usages
+        boolean isSelected(int field, int[] usages) {
+            int[] list = lists.get(field);
+
+            for (int usage : usages) {
+                if (list != null ? indexOf(list, usage) >= 0 : usage >= fields.get(field)[3] && usage <= fields.get(field)[4]) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        boolean isInside(int field, int usage) {
+            for (Collection c = controls.get(field).parent; c != null; c = c.parent) {
+                if (c.hasUsage(usage)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private static long naive(byte[] buffer, int position, int[] field) {
+        long value = 0;
+
+        for (int i = 0; i < field[1]; ++i) {
+            int bit = position * 8 + field[0] + i;
+
+            value |= (long) (buffer[bit >> 3] >> (bit & 7) & 1) << i;
+        }
+
+        if (field[2] != 0 && field[1] < 64 && (value & 1L << (field[1] - 1)) != 0) {
+            value |= -1L << field[1];
+        }
+
+        return value;
+    }
+
+    // Physical value straight from the HID definition, independent of ReportLayout's precomputed scales
+    private static double physical(Control control, long raw) {
+        return (physicalMinimum(control) + (raw - (double) control.logicalMinimum) * slope(control)) * power(control);
+    }
+
+    // ReportLayout computes raw * scale + offset, so its rounding error is relative to each of the terms
+    // that make up the offset rather than to the result
+    private static double tolerance(Control control, long raw) {
+        double slope = slope(control) * power(control);
+
+        return 1e-9 * (Math.abs(raw * slope) + Math.abs(control.logicalMinimum * slope) +
+                       Math.abs(physicalMinimum(control) * power(control))) + Double.MIN_VALUE;
+    }
+
+    // Physical Minimum and Maximum both zero means physical equals logical
+    private static double physicalMinimum(Control control) {
+        boolean defined = control.physicalMinimum != 0 || control.physicalMaximum != 0;
+
+        return defined ? control.physicalMinimum : control.logicalMinimum;
+    }
+
+    private static double slope(Control control) {
+        boolean defined = control.physicalMinimum != 0 || control.physicalMaximum != 0;
+        double  logical = (double) control.logicalMaximum - control.logicalMinimum;
+        double  range   = defined ? (double) control.physicalMaximum - control.physicalMinimum : logical;
+
+        return logical != 0 ? range / logical : 1;
+    }
+
+    private static double power(Control control) {
+        int exponent = control.unitExponent;
+
+        return Math.pow(10, exponent >= 8 && exponent <= 15 ? exponent - 16 : exponent);
+    }
+
+    private static boolean isWide(ReportLayout layout) {
+        for (int i = 0; i < layout.fieldCount(); ++i) {
+            if (layout.size(i) > 32) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int indexOf(int[] list, int usage) {
+        for (int i = 0; i < list.length; ++i) {
+            if (list[i] == usage) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // Per-report checks
+
+    private void check(ReportDescriptor hrd, int reportID, Control.Type type, List<byte[]> stream)
+        throws InterruptedException {
+        stage = type + " report " + reportID;
+
+        Reference reference = new Reference();
+        hrd.evaluate(reportID, type, reference);
+
+        ReportLayout    layout    = hrd.layout(reportID, type);
+        boolean         wide      = isWide(layout);
+        ReportDecoder   generated = !wide && random.nextInt(GENERATE) == 0 ? DecoderGenerator.specialize(layout) : layout;
+        DeltaDecoder    delta     = wide ? null : new DeltaDecoder(layout);
+        KeyStateDecoder keys      = new KeyStateDecoder(layout);
+        int             prefix    = hrd.isNumbered() ? 1 : 0;
+        int             length    = hrd.reportLength(reportID, type);
+        int             count     = reference.fields.size();
+
+        expect("field count", count, layout.fieldCount());
+        expect("report length", prefix + layout.byteLength(), length);
+
+        for (int i = 0; i < count; ++i) {
+            int[] field = reference.fields.get(i);
+            int[] list  = reference.lists.get(i);
+
+            expect("offset of field", i, field[0], layout.offset(i));
+            expect("size of field", i, field[1], layout.size(i));
+            expect("signedness of field", i, field[2], layout.isSigned(i) ? 1 : 0);
+            expect("usage of field", i, field[3], layout.usage(i));
+            expect("usage maximum of field", i, field[4], layout.usageMaximum(i));
+            expect("array flag of field", i, field[5], layout.isArray(i) ? 1 : 0);
+
+            if (!Arrays.equals(list, layout.usageList(i))) {
+                fail(String.format("usage list of field %d: expected %s, got %s", i, Arrays.toString(list), Arrays.toString(layout.usageList(i))));
+            }
+
+            if (field[5] != 0) {
+                long minimum = reference.controls.get(i).logicalMinimum;
+                long span    = list != null ? list.length : (long) field[4] - field[3] + 1;
+
+                for (long value = minimum - 1; value <= minimum + span; ++value) {
+                    long index    = value - minimum;
+                    int  expected = index < 0 || index >= span ? 0 : list != null ? list[(int) index] : field[3] + (int) index;
+
+                    expect("array usage of field " + i + " value", (int) value, expected, layout.arrayUsage(i, (int) value));
+                }
+            }
+        }
+
+        int[][]  columns  = new int[count][REPORTS];
+        long[][] raws     = new long[count][REPORTS];
+        byte[]   run      = new byte[REPORTS * length + 3];
+        int[]    ints     = new int[count];
+        long[]   longs    = new long[count];
+        double[] doubles  = new double[count];
+        final long[] sunk = new long[count];
+        final int[]  events = new int[2];
+        SortedMap<Long, Integer> keyState = new TreeMap<Long, Integer>();
+
+        ReportLayout.Sink sink = new ReportLayout.Sink() {
+            @Override public void field(int field, int usage, long value) {
+                sunk[field] = value;
+            }
+        };
+
+        KeyStateDecoder.Listener counter = new KeyStateDecoder.Listener() {
+            @Override public void pressed(int usage) {
+                ++events[0];
+            }
+
+            @Override public void released(int usage) {
+                ++events[1];
+            }
+        };
+
+        byte[] last = null;
+        int    pos  = 0;
+
+        for (int r = 0; r < REPORTS; ++r) {
+            int    slack  = random.nextInt(9);
+            byte[] buffer = new byte[slack + length + random.nextInt(9)];
+
+            pos = slack + prefix;
+            fill(buffer, r);
+
+            if (prefix != 0) {
+                buffer[slack] = (byte) reportID;
+            }
+
+            direct.clear();
+            direct.put(buffer).clear();
+            stream.add(Arrays.copyOfRange(buffer, slack, slack + length));
+            System.arraycopy(buffer, slack, run, 3 + r * length, length);
+
+            expectSame("dispatch", layout, hrd.dispatch(buffer, slack, length, type));
+
+            layout.decode(buffer, pos, longs);
+            layout.decode(buffer, pos, sink);
+            layout.decode(buffer, pos, doubles);
+
+            long[]   heapLongs      = layout.decode(ByteBuffer.wrap(buffer), pos, new long[count]);
+            long[]   directLongs    = layout.decode(direct, pos, new long[count]);
+            double[] directPhysical = layout.decode(direct, pos, new double[count]);
+            int[]    heap           = null;
+            int[]    dir            = null;
+            int[]    gen            = null;
+
+            if (!wide) {
+                layout.decode(buffer, pos, ints);
+                heap = layout.decode(ByteBuffer.wrap(buffer), pos, new int[count]);
+                dir  = layout.decode(direct, pos, new int[count]);
+                gen  = generated.decode(buffer, pos, new int[count]);
+
+                delta.decode(buffer, pos, new DeltaDecoder.Listener() {
+                    @Override public void changed(int field, int usage, int previous, int value) {
+                    }
+                });
+            }
+
+            for (int i = 0; i < count; ++i) {
+                int[]   field    = reference.fields.get(i);
+                Control control  = reference.controls.get(i);
+                long    expected = naive(buffer, pos, field);
+                int     narrow   = (int) expected;
+                double  value    = physical(control, expected);
+                double  error    = tolerance(control, expected);
+
+                raws[i][r] = expected;
+
+                expect("long[]",            i, r, buffer, expected, longs[i]);
+                expect("sink",              i, r, buffer, expected, sunk[i]);
+                expect("heap buffer long",  i, r, buffer, expected, heapLongs[i]);
+                expect("direct buffer long",i, r, buffer, expected, directLongs[i]);
+                expect("field readLong",    i, r, buffer, expected, layout.field(i).readLong(buffer, pos));
+                expect("direct readLong",   i, r, buffer, expected, layout.field(i).readLong(direct, pos));
+                expect("physical",          i, r, buffer, value, doubles[i], error);
+                expect("direct physical",   i, r, buffer, value, directPhysical[i], error);
+
+                if (field[1] <= 32) {
+                    columns[i][r] = narrow;
+
+                    expect("peek",          i, r, buffer, narrow, ReportDescriptor.peek(buffer, pos * 8 + field[0], field[1], field[2] != 0));
+                    expect("field read",    i, r, buffer, narrow, layout.field(i).read(buffer, pos));
+                    expect("direct read",   i, r, buffer, narrow, layout.field(i).read(direct, pos));
+                }
+
+                if (!wide) {
+                    expect("int[]",         i, r, buffer, narrow, ints[i]);
+                    expect("heap buffer",   i, r, buffer, narrow, heap[i]);
+                    expect("direct buffer", i, r, buffer, narrow, dir[i]);
+                    expect("generated",     i, r, buffer, narrow, gen[i]);
+                    expect("delta",         i, r, buffer, narrow, delta.value(i));
+                }
+            }
+
+            // Key state, with every press and release counted by the listener
+            SortedMap<Long, Integer> previous = keyState;
+
+            keyState  = keyState(reference, buffer, pos, previous);
+            events[0] = 0;
+            events[1] = 0;
+
+            int changes = r % 2 == 0 ? keys.decode(buffer, pos, counter) : keys.decode(direct, pos, counter);
+
+            checkKeys(keys, keyState, previous, changes, events, r, buffer);
+
+            last = buffer;
+            ++reports;
+            fields += count;
+        }
+
+        // Strided column kernels over back-to-back reports of this ID, then the physical and fixed-point
+        // conversions of the decoded columns
+        for (int i = 0; i < count; ++i) {
+            if (layout.size(i) > 32) {
+                continue;
+            }
+
+            int[]    column  = new int[REPORTS + 1];
+            double[] scaled  = new double[REPORTS];
+            long[]   fixed   = new long[REPORTS];
+            Control  control = reference.controls.get(i);
+
+            layout.decodeColumn(i, run, 3 + prefix, length, REPORTS, column, 1);
+            layout.toPhysical(i, columns[i], 0, REPORTS, scaled, 0);
+            layout.toFixed(i, columns[i], 0, REPORTS, fixed, 0);
+
+            for (int r = 0; r < REPORTS; ++r) {
+                double expected = physical(control, raws[i][r]);
+                double error    = tolerance(control, raws[i][r]);
+
+                expect("strided column", i, r, run, columns[i][r], column[r + 1]);
+                expect("toPhysical", i, r, run, expected, scaled[r], error);
+
+                // Exact fields scale by a Q31.32 constant, so the error grows with the raw value
+                if (Math.abs(expected) < 0x1p46) {
+                    double slack = layout.isFixedExact(i) ? Math.abs((double) raws[i][r]) * 0x1p-17 + 2 : 1;
+
+                    expect("toFixed", i, r, run, expected * 0x1p16, fixed[r], error * 0x1p16 + slack);
+                }
+            }
+        }
+
+        if (wide) {
+            try {
+                layout.decode(run, 3 + prefix, new int[count]);
+                fail("int[] decode of a field wider than 32 bits did not throw");
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+        else if (count != 0 && random.nextInt(PARALLEL) == 0) {
+            checkParallel(hrd, reportID, type, run, length, columns);
+        }
+
+        if (last != null) {
+            checkSpans(layout, last, pos);
+            checkPruned(hrd, reportID, type, reference, last, pos);
+        }
+
+        checkRejects(hrd, reportID, type, length);
+
+        if (type != Control.Type.INPUT && count != 0 && !wide) {
+            checkRoundTrip(layout, reference, prefix);
+        }
+    }
+
+    // KeyStateDecoder's rules: array slots set the bit of their index unless the usage ID is 0, and a phantom
+    // state (ErrorRollOver, POSTFail or ErrorUndefined) keeps the previous state of the whole array; 1-bit
+    // variables set their own bit. Keys are field << 20 | index, values the usages.
+    private static SortedMap<Long, Integer> keyState(Reference reference, byte[] buffer, int position, SortedMap<Long, Integer> previous) {
+        SortedMap<Long, Integer> state = new TreeMap<Long, Integer>();
+
+        for (int i = 0; i < reference.fields.size(); ) {
+            Control control = reference.controls.get(i);
+            int[]   field   = reference.fields.get(i);
+            int     end     = i + 1;
+
+            if (field[5] != 0) {
+                while (end < reference.fields.size() && reference.controls.get(end) == control) {
+                    ++end;
+                }
+
+                int[]   list    = reference.lists.get(i);
+                long    width   = Math.min(list != null ? list.length - 1L : (long) field[4] - field[3],
+                                           (long) control.logicalMaximum - control.logicalMinimum) + 1;
+                boolean phantom = false;
+                Map<Long, Integer> group = new TreeMap<Long, Integer>();
+
+                for (int f = i; f < end && !phantom; ++f) {
+                    long index = (long) (int) naive(buffer, position, reference.fields.get(f)) - control.logicalMinimum;
+
+                    if (index < 0 || index >= Math.min(width, 1 << 16)) {
+                        continue;
+                    }
+
+                    int usage = list != null ? list[(int) index] : field[3] + (int) index;
+
+                    if ((usage & 0xffff) == 0) {
+                        continue;
+                    }
+                    else if (usage >>> 16 == 0x07 && (usage & 0xffff) <= 0x03) {
+                        phantom = true;
+                    }
+                    else {
+                        group.put((long) i << 20 | index, usage);
+                    }
+                }
+
+                state.putAll(phantom ? previous.subMap((long) i << 20, (long) (i + 1) << 20) : group);
+            }
+            else if (field[1] == 1 && naive(buffer, position, field) != 0) {
+                state.put((long) i << 20, field[3]);
+            }
+
+            i = end;
+        }
+
+        return state;
+    }
+
+    private void checkKeys(KeyStateDecoder keys, SortedMap<Long, Integer> state, SortedMap<Long, Integer> previous, int changes,
+                           int[] events, int row, byte[] report) {
+        int presses  = 0;
+        int releases = 0;
+
+        for (Long key : state.keySet()) {
+            presses += previous.containsKey(key) ? 0 : 1;
+        }
+
+        for (Long key : previous.keySet()) {
+            releases += state.containsKey(key) ? 0 : 1;
+        }
+
+        expect("key events of row", row, presses + releases, changes);
+        expect("key presses of row", row, presses, events[0]);
+        expect("key releases of row", row, releases, events[1]);
+
+        int[] pressed  = new int[state.size() + 1];
+        int   count    = keys.pressed(pressed);
+        int[] expected = new int[state.size()];
+        int   i        = 0;
+
+        for (int usage : state.values()) {
+            expected[i++] = usage;
+        }
+
+        int[] actual = Arrays.copyOf(pressed, count);
+
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+
+        if (!Arrays.equals(expected, actual)) {
+            fail(String.format("pressed keys row %d of %s: expected %s, got %s", row, Hex.encode(report), Arrays.toString(expected), Arrays.toString(actual)));
+        }
+    }
+
+    // Spans are byte runs inside the report; slices and copies must return exactly those bytes
+    private void checkSpans(ReportLayout layout, byte[] report, int position) {
+        for (int span = 0; span < layout.spanCount(); ++span) {
+            int    offset = layout.spanOffset(span);
+            int    length = layout.spanLength(span);
+            byte[] copy   = new byte[length + 2];
+
+            expect("offset of span", span, offset * 8, layout.offset(layout.spanField(span)));
+
+            if (offset + length > layout.byteLength()) {
+                fail(String.format("span %d: %d bytes at %d exceed the report length %d", span, length, offset, layout.byteLength()));
+                continue;
+            }
+
+            direct.clear();
+            direct.put(report).clear();
+
+            ByteBuffer heap = layout.slice(span, report, position);
+            ByteBuffer dir  = layout.slice(span, direct, position);
+
+            expect("slice length of span", span, length, heap.remaining());
+            expect("direct slice length of span", span, length, dir.remaining());
+            expect("copySpan length of span", span, length, layout.copySpan(span, report, position, copy, 1));
+
+            for (int i = 0; i < length; ++i) {
+                expect("slice of span " + span + " byte", i, report[position + offset + i], heap.get(heap.position() + i));
+                expect("direct slice of span " + span + " byte", i, report[position + offset + i], dir.get(dir.position() + i));
+                expect("copySpan of span " + span + " byte", i, report[position + offset + i], copy[1 + i]);
+            }
+
+            expect("direct copySpan length of span", span, length, layout.copySpan(span, direct, position, copy, 2));
+
+            for (int i = 0; i < length; ++i) {
+                expect("direct copySpan of span " + span + " byte", i, report[position + offset + i], copy[2 + i]);
+            }
+        }
+    }
+
+    // compile() with usages and with a collection filter keeps the matching reference fields, in order
+    private void checkPruned(ReportDescriptor hrd, int reportID, Control.Type type, Reference reference, byte[] report, int position) {
+        int   count  = reference.fields.size();
+        int[] usages = new int[1 + random.nextInt(4)];
+
+        for (int u = 0; u < usages.length; ++u) {
+            int field = count == 0 || random.nextInt(4) == 0 ? -1 : random.nextInt(count);
+
+            if (field < 0) {
+                usages[u] = 0x00010000 | random.nextInt(0x100);
+            }
+            else if (reference.lists.get(field) != null) {
+                usages[u] = reference.lists.get(field)[random.nextInt(reference.lists.get(field).length)];
+            }
+            else {
+                int[] f = reference.fields.get(field);
+
+                usages[u] = f[3] + (int) ((random.nextLong() >>> 1) % ((long) f[4] - f[3] + 1));
+            }
+        }
+
+        List<Integer> selected = new ArrayList<Integer>();
+
+        for (int i = 0; i < count; ++i) {
+            if (reference.isSelected(i, usages)) {
+                selected.add(i);
+            }
+        }
+
+        stage = type + " report " + reportID + " usages " + Arrays.toString(usages);
+        expectPruned(hrd.compile(reportID, type, usages), reference, selected, report, position);
+
+        List<Integer> collections = new ArrayList<Integer>(hrd.usageSet(type));
+        int usage = collections.isEmpty() || random.nextInt(4) == 0 ? 0x00010000 | random.nextInt(0x48)
+                                                                     : collections.get(random.nextInt(collections.size()));
+
+        selected.clear();
+
+        for (int i = 0; i < count; ++i) {
+            if (reference.isInside(i, usage)) {
+                selected.add(i);
+            }
+        }
+
+        stage = type + " report " + reportID + String.format(" collection %08x", usage);
+        expectPruned(hrd.compile(reportID, type, ReportFilter.collection(usage)), reference, selected, report, position);
+        stage = type + " report " + reportID;
+    }
+
+    private void expectPruned(ReportLayout pruned, Reference reference, List<Integer> selected, byte[] report, int position) {
+        expect("pruned field count", selected.size(), pruned.fieldCount());
+
+        if (pruned.fieldCount() != selected.size()) {
+            return;
+        }
+
+        long[] values = pruned.decode(report, position, new long[selected.size()]);
+
+        for (int i = 0; i < selected.size(); ++i) {
+            int[] field = reference.fields.get(selected.get(i));
+
+            expect("pruned offset of field", i, field[0], pruned.offset(i));
+            expect("pruned usage of field", i, field[3], pruned.usage(i));
+            expect("pruned usage maximum of field", i, field[4], pruned.usageMaximum(i));
+            expect("pruned", i, 0, report, naive(report, position, field), values[i]);
+        }
+    }
+
+    // dispatch() returns null for unknown IDs and short packets and counts both in the metrics
+    private void checkRejects(ReportDescriptor hrd, int reportID, Control.Type type, int length) {
+        Metrics    saved      = ReportDescriptor.getMetrics();
+        Statistics statistics = new Statistics();
+        byte[]     packet     = new byte[length + 1];
+
+        ReportDescriptor.setMetrics(statistics);
+
+        try {
+            if (hrd.isNumbered()) {
+                int unknown = 1 + random.nextInt(255);
+
+                while (hrd.layout(unknown, type) != null) {
+                    unknown = 1 + random.nextInt(255);
+                }
+
+                packet[0] = (byte) unknown;
+                expectSame("dispatch of unknown report " + unknown, null, hrd.dispatch(packet, 0, packet.length, type));
+                expect("unknown count of report", unknown, 1, statistics.unknown(type, unknown));
+                packet[0] = (byte) reportID;
+            }
+
+            if (length > 0) {
+                int     available = random.nextInt(length);
+                boolean counted   = available > 0 || !hrd.isNumbered();
+
+                expectSame("dispatch of " + available + " bytes", null, hrd.dispatch(ByteBuffer.wrap(packet), 0, available, type));
+                expect("malformed count of " + available + " bytes", counted ? 1 : 0, statistics.malformed(type, reportID));
+            }
+        }
+        finally {
+            ReportDescriptor.setMetrics(saved);
+        }
+    }
+
+    // Same-ID column decoding across chunks, heap and direct, against the columns decoded above
+    private void checkParallel(ReportDescriptor hrd, int reportID, Control.Type type, byte[] run, int length, int[][] columns)
+        throws InterruptedException {
+        int        rows     = 257 + random.nextInt(1024);
+        byte[]     bytes    = new byte[3 + rows * length];
+        ByteBuffer buffer   = ByteBuffer.allocateDirect(bytes.length);
+        ParallelDecoder parallel = new ParallelDecoder(hrd, type, EXECUTOR, 1 + random.nextInt(4));
+
+        for (int row = 0; row < rows; ++row) {
+            System.arraycopy(run, 3 + row % REPORTS * length, bytes, 3 + row * length, length);
+        }
+
+        buffer.put(bytes).clear();
+
+        int[][] heap = parallel.decode(bytes, 3, rows, reportID, null);
+        int[][] dir  = parallel.decode(buffer, 3, rows, reportID, new int[columns.length][rows]);
+
+        for (int i = 0; i < columns.length; ++i) {
+            for (int row = 0; row < rows; ++row) {
+                if (heap[i][row] != columns[i][row % REPORTS] || dir[i][row] != columns[i][row % REPORTS]) {
+                    byte[] report = Arrays.copyOfRange(bytes, 3 + row * length, 3 + (row + 1) * length);
+
+                    expect("parallel column", i, row, report, columns[i][row % REPORTS], heap[i][row]);
+                    expect("direct parallel column", i, row, report, columns[i][row % REPORTS], dir[i][row]);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void checkRoundTrip(ReportLayout layout, Reference reference, int prefix) {
+        ReportEncoder encoder = new ReportEncoder(layout);
+        int[]         values  = new int[layout.fieldCount()];
+        byte[]        buffer  = new byte[encoder.length()];
+
+        for (int r = 0; r < REPORTS; ++r) {
+            for (int i = 0; i < values.length; ++i) {
+                Control control = reference.controls.get(i);
+                long    range   = (long) control.logicalMaximum - control.logicalMinimum + 1;
+
+                values[i] = (int) (control.logicalMinimum + (random.nextLong() >>> 1) % range);
+            }
+
+            encoder.encode(buffer, 0, values);
+
+            int[] decoded = layout.decode(buffer, prefix, new int[values.length]);
+
+            for (int i = 0; i < values.length; ++i) {
+                int[] field = reference.fields.get(i);
+
+                expect("round trip", i, r, buffer, values[i], decoded[i]);
+                expect("naive round trip", i, r, buffer, values[i], (int) naive(buffer, prefix, field));
+            }
+
+            // poke() is the primitive behind the encoder
+            for (int i = 0; i < values.length; ++i) {
+                int[] field = reference.fields.get(i);
+
+                ReportDescriptor.poke(buffer, prefix * 8 + field[0], field[1], ~values[i]);
+                expect("poke", i, r, buffer, ~values[i] & mask(field[1]), (int) naive(buffer, prefix, new int[] { field[0], field[1], 0 }) & mask(field[1]));
+            }
+
+            if (prefix != 0) {
+                expect("encoded report ID", layout.reportID(), buffer[0] & 0xff);
+            }
+        }
+    }
+
+    private void checkBatch(ReportDescriptor hrd, Control.Type type, List<byte[]> stream)
+        throws InterruptedException {
+        if (stream.isEmpty()) {
+            return;
+        }
+
+        // Batches decode into int columns, which fields wider than 32 bits do not fit
+        for (Report report : hrd.reports()) {
+            if (report.types.contains(type) && isWide(hrd.layout(report.reportID, type))) {
+                return;
+            }
+        }
+
+        // Shuffle the reports of all IDs into one stream, then decode it as a batch
+        Collections.shuffle(stream, random);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (byte[] report : stream) {
+            out.write(report, 0, report.length);
+        }
+
+        byte[]      bytes  = out.toByteArray();
+        ReportBatch heap   = new ReportBatch(hrd, type, 1 + random.nextInt(4));
+        ReportBatch direct = new ReportBatch(hrd, type);
+        ByteBuffer  buffer = bytes.length <= this.direct.capacity() ? this.direct : ByteBuffer.allocateDirect(bytes.length);
+        int         prefix = hrd.isNumbered() ? 1 : 0;
+        int[]       rows   = new int[256];
+
+        buffer.clear();
+        buffer.put(bytes).clear();
+        expect("batch consumed", bytes.length, heap.decode(bytes, 0, bytes.length));
+        expect("direct batch consumed", bytes.length, direct.decode(buffer, 0, bytes.length));
+        expect("batch size", stream.size(), heap.size());
+
+        for (byte[] report : stream) {
+            int          id     = prefix != 0 ? report[0] & 0xff : 0;
+            ReportLayout layout = heap.layout(id);
+            int          row    = rows[id]++;
+
+            for (int i = 0; i < layout.fieldCount(); ++i) {
+                int expected = layout.field(i).read(report, prefix);
+
+                expect("batch column", i, row, report, expected, heap.column(id, i)[row]);
+                expect("direct batch column", i, row, report, expected, direct.column(id, i)[row]);
+            }
+        }
+
+        if (random.nextInt(PARALLEL) == 0) {
+            checkParallelBatch(hrd, type, bytes, stream.size(), heap, rows);
+        }
+    }
+
+    // The stream repeated past ParallelDecoder's chunk size, decoded into a fresh batch
+    private void checkParallelBatch(ReportDescriptor hrd, Control.Type type, byte[] bytes, int reports, ReportBatch expected, int[] rows)
+        throws InterruptedException {
+        int         repeat   = 1 + 1024 / reports;
+        byte[]      repeated = new byte[bytes.length * repeat];
+        ReportBatch result   = new ReportBatch(hrd, type);
+
+        for (int i = 0; i < repeat; ++i) {
+            System.arraycopy(bytes, 0, repeated, i * bytes.length, bytes.length);
+        }
+
+        expect("parallel batch consumed", repeated.length,
+               new ParallelDecoder(hrd, type, EXECUTOR, 1 + random.nextInt(4)).decode(repeated, 0, repeated.length, result));
+        expect("parallel batch size", reports * repeat, result.size());
+
+        for (int id = 0; id < rows.length; ++id) {
+            ReportLayout layout = rows[id] == 0 ? null : expected.layout(id);
+
+            for (int i = 0; layout != null && i < layout.fieldCount(); ++i) {
+                int[] column = result.column(id, i);
+
+                for (int row = 0; row < rows[id] * repeat; ++row) {
+                    if (column[row] != expected.column(id, i)[row % rows[id]]) {
+                        expect("parallel batch column of report " + id, i, row, bytes, expected.column(id, i)[row % rows[id]], column[row]);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Writes every report of the case to a capture file and replays it in full, by time window and by ID
+    private void checkCapture(ReportDescriptor hrd, Map<Control.Type, List<byte[]>> streams)
+        throws IOException {
+        final List<Control.Type> types      = new ArrayList<Control.Type>();
+        final List<Integer>      ids        = new ArrayList<Integer>();
+        final List<byte[]>       records    = new ArrayList<byte[]>();
+        final List<Long>         timestamps = new ArrayList<Long>();
+        int  prefix    = hrd.isNumbered() ? 1 : 0;
+        long timestamp = random.nextInt(1000);
+        File file      = File.createTempFile("fuzz", ".hidcap");
+
+        try {
+            CaptureWriter writer = new CaptureWriter(file, descriptor, 1 + random.nextInt(8));
+
+            try {
+                for (Map.Entry<Control.Type, List<byte[]>> stream : streams.entrySet()) {
+                    for (byte[] report : stream.getValue()) {
+                        int id = prefix != 0 ? report[0] & 0xff : 0;
+
+                        timestamp += random.nextInt(3);
+
+                        if (random.nextBoolean()) {
+                            writer.write(timestamp, stream.getKey(), id, report, 0, report.length);
+                        }
+                        else {
+                            writer.write(timestamp, stream.getKey(), id, ByteBuffer.wrap(report));
+                        }
+
+                        types.add(stream.getKey());
+                        ids.add(id);
+                        records.add(report);
+                        timestamps.add(timestamp);
+                    }
+                }
+            }
+            finally {
+                writer.close();
+            }
+
+            CaptureFile capture = new CaptureFile(file);
+
+            try {
+                final int[] next = new int[1];
+
+                expect("capture records", records.size(), capture.records());
+                expect("capture replayed", records.size(), capture.replay(Long.MIN_VALUE, Long.MAX_VALUE, new CaptureFile.Listener() {
+                    @Override public boolean report(long timestamp, Control.Type type, int reportID, ByteBuffer buffer, int position, int length) {
+                        int    i      = next[0]++;
+                        byte[] report = new byte[length];
+
+                        for (int b = 0; b < length; ++b) {
+                            report[b] = buffer.get(position + b);
+                        }
+
+                        if (i >= records.size() || timestamp != timestamps.get(i) || type != types.get(i) || reportID != ids.get(i) ||
+                            !Arrays.equals(report, records.get(i))) {
+                            fail(String.format("capture record %d: got %s report %d of %s at %d", i, type, reportID, Hex.encode(report), timestamp));
+                            return false;
+                        }
+
+                        return true;
+                    }
+                }));
+
+                if (records.isEmpty()) {
+                    return;
+                }
+
+                CaptureFile.Listener any = new CaptureFile.Listener() {
+                    @Override public boolean report(long timestamp, Control.Type type, int reportID, ByteBuffer buffer, int position, int length) {
+                        return true;
+                    }
+                };
+
+                long from   = timestamps.get(random.nextInt(records.size()));
+                long to     = from + random.nextInt(8);
+                int  id     = ids.get(random.nextInt(records.size()));
+                int  window = 0;
+                int  withID = 0;
+
+                for (int i = 0; i < records.size(); ++i) {
+                    window += timestamps.get(i) >= from && timestamps.get(i) <= to ? 1 : 0;
+                    withID += ids.get(i) == id ? 1 : 0;
+                }
+
+                expect("capture records from " + from + " to", (int) to, window, capture.replay(from, to, any));
+                expect("capture records of report", id, withID, capture.replay(Long.MIN_VALUE, Long.MAX_VALUE, id, any));
+            }
+            finally {
+                capture.close();
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    // Random report contents, biased towards all-zero, all-one and sparse bit patterns
+    private void fill(byte[] buffer, int round) {
+        switch (round % 4) {
+            case 0:  Arrays.fill(buffer, (byte) 0);  break;
+            case 1:  Arrays.fill(buffer, (byte) -1); break;
+            case 2:
+                for (int i = 0; i < buffer.length; ++i) {
+                    buffer[i] = (byte) (random.nextInt(8) == 0 ? 1 << random.nextInt(8) : 0);
+                }
+                break;
+            default: random.nextBytes(buffer); break;
+        }
+    }
+
+    private static int mask(int size) {
+        return size >= 32 ? -1 : (1 << size) - 1;
+    }
+
+    private void expect(String what, long expected, long actual) {
+        if (expected != actual) {
+            fail(String.format("%s: expected %d (%x), got %d (%x)", what, expected, expected, actual, actual));
+        }
+    }
+
+    private void expect(String what, int index, long expected, long actual) {
+        if (expected != actual) {
+            expect(what + " " + index, expected, actual);
+        }
+    }
+
+    private void expect(String backend, int field, int row, byte[] report, long expected, long actual) {
+        if (expected != actual) {
+            expect(backend + " field " + field + " row " + row + " of " + Hex.encode(report), expected, actual);
+        }
+    }
+
+    private void expect(String backend, int field, int row, byte[] report, double expected, double actual, double tolerance) {
+        if (!(Math.abs(expected - actual) <= tolerance)) {
+            fail(String.format("%s field %d row %d of %s: expected %s, got %s", backend, field, row, Hex.encode(report), expected, actual));
+        }
+    }
+
+    private void expectSame(String what, Object expected, Object actual) {
+        if (expected != actual) {
+            fail(String.format("%s: expected %s, got %s", what, expected, actual));
+        }
+    }
+
+    private void fail(String message) {
+        if (failures.length() < 4096) {
+            failures.append("  ").append(stage).append(": ").append(message).append('\n');
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeltaBenchmark {
+    @Param({ "ps3", "keyboard", "mouse", "synthetic" })
+    public String descriptor;
+
+    private ReportDescriptor hrd;
+    private ReportLayout layout;
+    private DeltaDecoder delta;
+    private byte[][] reports;
+    private int[] values;
+    private int[] previous;
+    private int next;
+    private long sum;
+
+    private final DeltaDecoder.Listener listener = new DeltaDecoder.Listener() {
+        @Override public void changed(int field, int usage, int previous, int value) {
+            sum += value;
+        }
+    };
+
+    @Setup public void setup()
+        throws IOException {
+        hrd = new ReportDescriptor(Descriptors.named(descriptor));
+
+        for (ReportDescriptor.Report r : hrd.reports()) {
+            if (r.types.contains(Control.Type.INPUT) && hrd.layout(r.reportID, Control.Type.INPUT) != null) {
+                layout = hrd.layout(r.reportID, Control.Type.INPUT);
+                break;
+            }
+        }
+
+        // A stream of reports where each differs from the previous one in a single bit
+        byte[] report = Descriptors.randomReport(hrd, layout, new Random(42));
+        int prefix = position();
+
+        reports = new byte[64][];
+
+        for (int i = 0; i < reports.length; ++i) {
+            int bit = (i * 37) % Math.max(layout.bitLength(), 1);
+
+            report = report.clone();
+            report[prefix + bit / 8] ^= 1 << (bit % 8);
+            reports[i] = report;
+        }
+
+        delta    = new DeltaDecoder(layout);
+        values   = new int[layout.fieldCount()];
+        previous = new int[layout.fieldCount()];
+    }
+
+    private int position() {
+        return hrd.isNumbered() ? 1 : 0;
+    }
+
+    @Benchmark public long fullDecodeAndCompare() {
+        int[] tmp = previous;
+
+        sum      = 0;
+        previous = values;
+        values   = layout.decode(reports[next++ & 63], position(), tmp);
+
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] != previous[i]) {
+                sum += values[i];
+            }
+        }
+
+        return sum;
+    }
+
+    @Benchmark public long deltaDecode() {
+        sum = 0;
+        delta.decode(reports[next++ & 63], position(), listener);
+        return sum;
+    }
+}
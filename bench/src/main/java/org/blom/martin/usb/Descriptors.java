@@ -0,0 +1,114 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.util.*;
+
+final class Descriptors {
+    static final String BARCODE_SCANNER = "058C0902A1010912A1028502150026FF00750895010501093B81029503058C09FB09FC09FD8102953809FE8202020666FF9502090009008102058C25017501950809FF8102C00914A10285041500250175019508095F0960098509869186C006FFFF0901A10285F0150026FF007508953F0902820202953F0903920202C0C0";
+    static final String PS3_CONTROLLER  = "05010904A101A102850175089501150026FF00810375019513150025013500450105091901291381027501950D0600FF8103150026FF0005010901A10075089504350046FF0009300931093209358102C0050175089527090181027508953009019102750895300901B102C0A1028502750895300901B102C0A10285EE750895300901B102C0A10285EF750895300901B102C0C0";
+    static final String MEDIA_CONTROL   = "050C0901A101050C150025017501950709B509B609B709CD09E209E909EA810295018101C0";
+    static final String KEYBOARD        = "05010906A101050719E029E71500250175019508810295017508810195057501050819012905910295017503910195067508150025650507190029658100C0";
+    static final String MOUSE           = "05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0";
+
+    private static final int[] SIZES = { 1, 3, 8, 12, 16, 5, 32, 7 };
+
+    private Descriptors() {
+    }
+
+    static byte[] named(String name) {
+        if (name.equals("barcode"))   return ReportDescriptor.fromHexString(BARCODE_SCANNER);
+        if (name.equals("ps3"))       return ReportDescriptor.fromHexString(PS3_CONTROLLER);
+        if (name.equals("media"))     return ReportDescriptor.fromHexString(MEDIA_CONTROL);
+        if (name.equals("keyboard"))  return ReportDescriptor.fromHexString(KEYBOARD);
+        if (name.equals("mouse"))     return ReportDescriptor.fromHexString(MOUSE);
+        if (name.equals("synthetic")) return synthetic(16, 24);
+
+        throw new IllegalArgumentException("Unknown descriptor " + name);
+    }
+
+    // A vendor-style descriptor with many numbered input reports, each a mix of aligned and unaligned fields
+    static byte[] synthetic(int reports, int controlsPerReport) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        write(os, 0x06, 0xff00);       // Usage Page (Vendor)
+        write(os, 0x09, 0x01);         // Usage
+        write(os, 0xa1, 0x01);         // Collection (Application)
+
+        for (int r = 1; r <= reports; ++r) {
+            int bits = 0;
+
+            write(os, 0x85, r);        // Report ID
+
+            for (int c = 0; c < controlsPerReport; ++c) {
+                int size  = SIZES[(r + c) % SIZES.length];
+                int count = 1 + c % 3;
+
+                write(os, 0x17, c % 2 == 0 ? 0 : -(1 << (size - 1)));               // Logical Minimum
+                write(os, 0x27, c % 2 == 0 ? (int) ((1L << size) - 1) : (1 << (size - 1)) - 1); // Logical Maximum
+                write(os, 0x75, size);                                              // Report Size
+                write(os, 0x95, count);                                             // Report Count
+                write(os, 0x1a, r << 8 | c * 4);                                    // Usage Minimum
+                write(os, 0x2a, r << 8 | c * 4 + count - 1);                        // Usage Maximum
+                write(os, 0x81, 0x02);                                              // Input (Data, Var, Abs)
+
+                bits += size * count;
+            }
+
+            if (bits % 8 != 0) {
+                write(os, 0x75, 8 - bits % 8);
+                write(os, 0x95, 1);
+                write(os, 0x81, 0x01);                                              // Input (Const)
+            }
+        }
+
+        write(os, 0xc0, 0);            // End Collection
+
+        return os.toByteArray();
+    }
+
+    static byte[] randomReports(ReportDescriptor descriptor, int count, long seed) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        List<ReportLayout> layouts = new ArrayList<ReportLayout>();
+        Random random = new Random(seed);
+
+        for (ReportDescriptor.Report report : descriptor.reports()) {
+            ReportLayout layout = descriptor.layout(report.reportID, ReportDescriptor.Control.Type.INPUT);
+
+            if (layout != null) {
+                layouts.add(layout);
+            }
+        }
+
+        for (int i = 0; i < count; ++i) {
+            byte[] report = randomReport(descriptor, layouts.get(random.nextInt(layouts.size())), random);
+
+            os.write(report, 0, report.length);
+        }
+
+        return os.toByteArray();
+    }
+
+    // Random field bytes for one report of layout, prefixed with its ID if the descriptor is numbered
+    static byte[] randomReport(ReportDescriptor descriptor, ReportLayout layout, Random random) {
+        int prefix = descriptor.isNumbered() ? 1 : 0;
+        byte[] report = new byte[prefix + layout.byteLength()];
+
+        random.nextBytes(report);
+
+        if (prefix != 0) {
+            report[0] = (byte) layout.reportID();
+        }
+
+        return report;
+    }
+
+    private static void write(ByteArrayOutputStream os, int prefix, int value) {
+        int length = (prefix & 0x03) == 3 ? 4 : prefix & 0x03;
+
+        os.write(prefix);
+
+        for (int i = 0; i < length; ++i) {
+            os.write(value >> (i * 8));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HexBenchmark {
+    @Param({ "8", "64", "4096" })
+    public int length;
+
+    private byte[] bytes;
+    private String hex;
+    private int[] usages;
+
+    @Setup public void setup() {
+        Random random = new Random(42);
+
+        bytes  = new byte[length];
+        usages = new int[length / 4];
+
+        random.nextBytes(bytes);
+
+        for (int i = 0; i < usages.length; ++i) {
+            usages[i] = random.nextInt();
+        }
+
+        hex = Hex.encode(bytes);
+    }
+
+    @Benchmark public String encode() {
+        return ReportDescriptor.toHexString(bytes);
+    }
+
+    @Benchmark public byte[] decode() {
+        return ReportDescriptor.fromHexString(hex);
+    }
+
+    @Benchmark public String encodeUsages() {
+        return ReportDescriptor.toHexString(usages);
+    }
+}
@@ -0,0 +1,56 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelBenchmark {
+    @Param({ "ps3", "synthetic" })
+    public String descriptor;
+
+    @Param({ "65536" })
+    public int reports;
+
+    @Param({ "1", "2", "4" })
+    public int threads;
+
+    private ReportDescriptor hrd;
+    private ExecutorService executor;
+    private ParallelDecoder decoder;
+    private byte[] buffer;
+
+    @Setup public void setup()
+        throws IOException {
+        hrd      = new ReportDescriptor(Descriptors.named(descriptor));
+        executor = Executors.newFixedThreadPool(threads);
+        decoder  = new ParallelDecoder(hrd, Control.Type.INPUT, executor, threads);
+        buffer   = Descriptors.randomReports(hrd, reports, 42);
+    }
+
+    @TearDown public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark public ReportBatch parallelDecode()
+        throws InterruptedException {
+        ReportBatch batch = new ReportBatch(hrd, Control.Type.INPUT);
+
+        decoder.decode(buffer, 0, buffer.length, batch);
+        return batch;
+    }
+
+    @Benchmark public ReportBatch sequentialDecode() {
+        ReportBatch batch = new ReportBatch(hrd, Control.Type.INPUT);
+
+        hrd.decode(buffer, 0, buffer.length, batch);
+        return batch;
+    }
+}
@@ -0,0 +1,28 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    @Param({ "barcode", "ps3", "media", "keyboard", "mouse", "synthetic" })
+    public String descriptor;
+
+    private byte[] bytes;
+
+    @Setup public void setup() {
+        bytes = Descriptors.named(descriptor);
+    }
+
+    @Benchmark public ReportDescriptor parse()
+        throws IOException {
+        return new ReportDescriptor(bytes);
+    }
+}
@@ -0,0 +1,53 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpanBenchmark {
+    // The barcode payload is a 56 byte vendor blob in input report 2
+    private ReportLayout layout;
+    private byte[] report;
+    private byte[] payload;
+    private int span;
+
+    @Setup public void setup()
+        throws IOException {
+        ReportDescriptor hrd = new ReportDescriptor(Descriptors.named("barcode"));
+
+        layout  = hrd.layout(2, Control.Type.INPUT);
+        span    = layout.spanIndexOf(0x008c00fe);
+        report  = new byte[hrd.reportLength(2, Control.Type.INPUT)];
+        payload = new byte[layout.spanLength(span)];
+
+        report[0] = 2;
+    }
+
+    @Benchmark public byte[] fieldByField() {
+        int first = layout.spanField(span);
+
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte) layout.field(first + i).read(report, 1);
+        }
+
+        return payload;
+    }
+
+    @Benchmark public byte[] copySpan() {
+        layout.copySpan(span, report, 1, payload, 0);
+        return payload;
+    }
+
+    @Benchmark public ByteBuffer slice() {
+        return layout.slice(span, report, 1);
+    }
+}
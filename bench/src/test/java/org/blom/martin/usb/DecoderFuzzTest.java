@@ -0,0 +1,22 @@
+package org.blom.martin.usb;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+// Runs the differential fuzzer with a fixed seed as part of the build; ./gradlew :bench:fuzz runs it for longer
+public class DecoderFuzzTest {
+    private static final long SEED  = 20160229L;
+    private static final int  CASES = 1500;
+
+    @Test public void fixedSeed()
+        throws Exception {
+        DecoderFuzz fuzz = new DecoderFuzz(SEED);
+
+        for (int i = 0; i < CASES; ++i) {
+            if (!fuzz.run()) {
+                fail("Case " + i + " with seed " + SEED + " " + fuzz.failure());
+            }
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+public final class BitField {
+    private BitField() {
+    }
+
+    public static int getInt(byte[] buffer, int offset, int length, boolean signed) {
+        return getInt(buffer, 0, offset, length, signed);
+    }
+
+    public static int getInt(byte[] buffer, int position, int offset, int length, boolean signed) {
+        if (length > 32) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        return (int) getLong(buffer, position, offset, length, signed);
+    }
+
+    public static long getLong(byte[] buffer, int offset, int length, boolean signed) {
+        return getLong(buffer, 0, offset, length, signed);
+    }
+
+    public static long getLong(byte[] buffer, int position, int offset, int length, boolean signed) {
+        int index = position + (offset >> 3);
+        int shift = offset & 7;
+
+        if (shift == 0) {
+            switch (length) {
+                case  8: return signed ? buffer[index]            : buffer[index] & 0xffL;
+                case 16: return signed ? getShort(buffer, index)  : getShort(buffer, index) & 0xffffL;
+                case 32: return signed ? getInt(buffer, index)    : getInt(buffer, index) & 0xffffffffL;
+                case 64: return getLong(buffer, index);
+            }
+        }
+
+        if (length <= 0 || length > 64) {
+            if (length == 0) {
+                return 0;
+            }
+
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        int  bytes = (shift + length + 7) >> 3;
+        long word;
+
+        if (index + 8 <= buffer.length) {
+            word = getLong(buffer, index);
+        }
+        else {
+            word = 0;
+
+            for (int i = 0; i < bytes; ++i) {
+                word |= (buffer[index + i] & 0xffL) << (i * 8);
+            }
+        }
+
+        word >>>= shift;
+
+        if (bytes > 8) {
+            word |= (buffer[index + 8] & 0xffL) << (64 - shift);
+        }
+
+        if (length == 64) {
+            return word;
+        }
+        else if (signed) {
+            return word << (64 - length) >> (64 - length);
+        }
+        else {
+            return word & (-1L >>> (64 - length));
+        }
+    }
+
+    public static void setInt(byte[] buffer, int offset, int length, int value) {
+        setInt(buffer, 0, offset, length, value);
+    }
+
+    public static void setInt(byte[] buffer, int position, int offset, int length, int value) {
+        if (length > 32) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        setLong(buffer, position, offset, length, value);
+    }
+
+    public static void setLong(byte[] buffer, int offset, int length, long value) {
+        setLong(buffer, 0, offset, length, value);
+    }
+
+    public static void setLong(byte[] buffer, int position, int offset, int length, long value) {
+        int index = position + (offset >> 3);
+        int shift = offset & 7;
+
+        if (shift == 0) {
+            switch (length) {
+                case  8: buffer[index] = (byte) value;           return;
+                case 16: putShort(buffer, index, (short) value); return;
+                case 32: putInt(buffer, index, (int) value);     return;
+                case 64: putLong(buffer, index, value);          return;
+            }
+        }
+
+        if (length <= 0 || length > 64) {
+            if (length == 0) {
+                return;
+            }
+
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        int  bytes = (shift + length + 7) >> 3;
+        long mask  = -1L >>> (64 - length);
+
+        value &= mask;
+
+        for (int i = 0; i < bytes; ++i) {
+            int  bit = i * 8 - shift;
+            long m   = bit < 0 ? mask  << -bit : mask  >>> bit;
+            long v   = bit < 0 ? value << -bit : value >>> bit;
+
+            buffer[index + i] = (byte) (buffer[index + i] & ~m | v);
+        }
+    }
+
+    // Extracts the same field from count reports laid out stride bytes apart, using one specialised loop per case
+    public static void getInts(byte[] buffer, int position, int stride, int count, int offset, int length, boolean signed,
+                               int[] values, int index) {
+        getInts(buffer, position, stride, count, offset, length, signed, values, index, ColumnKernel.VECTOR);
+    }
+
+    // vector selects the ColumnKernel shift pass for unaligned fields; ColumnBenchmark compares both
+    static void getInts(byte[] buffer, int position, int stride, int count, int offset, int length, boolean signed,
+                        int[] values, int index, boolean vector) {
+        if (length > 32 || length < 0) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        int base  = position + (offset >> 3);
+        int shift = offset & 7;
+        int span  = (shift + length + 7) >> 3;
+        int load  = span <= 4 ? 4 : 8;
+        int fast  = count;
+
+        if (length == 0) {
+            Arrays.fill(values, index, index + count, 0);
+            return;
+        }
+
+        // Only rows whose whole 4 or 8 byte load stays inside the buffer take the fast path
+        if (count > 0 && base + (count - 1) * stride + load > buffer.length) {
+            fast = buffer.length - base < load || stride <= 0 ? 0 : Math.min(count, (buffer.length - base - load) / stride + 1);
+        }
+
+        if (shift == 0 && length == 8) {
+            fast = count;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = buffer[p];
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = buffer[p] & 0xff;
+                }
+            }
+        }
+        else if (shift == 0 && length == 16) {
+            fast = count;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getShort(buffer, p);
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getShort(buffer, p) & 0xffff;
+                }
+            }
+        }
+        else if (span <= 4 && vector) {
+            // Gathers the words, then shifts and sign-extends them all in one pass
+            for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                values[index + i] = getInt(buffer, p);
+            }
+
+            ColumnKernel.shift(values, index, fast, 32 - shift - length, 32 - length, signed);
+        }
+        else if (span <= 4) {
+            int left  = 32 - shift - length;
+            int right = 32 - length;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getInt(buffer, p) << left >> right;
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getInt(buffer, p) << left >>> right;
+                }
+            }
+        }
+        else {
+            int left  = 64 - shift - length;
+            int right = 64 - length;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = (int) (getLong(buffer, p) << left >> right);
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = (int) (getLong(buffer, p) << left >>> right);
+                }
+            }
+        }
+
+        for (int i = fast; i < count; ++i) {
+            values[index + i] = getInt(buffer, position + i * stride, offset, length, signed);
+        }
+    }
+
+    public static int getInt(ByteBuffer buffer, int offset, int length, boolean signed) {
+        return getInt(buffer, 0, offset, length, signed);
+    }
+
+    public static int getInt(ByteBuffer buffer, int position, int offset, int length, boolean signed) {
+        if (length > 32) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        return (int) getLong(buffer, position, offset, length, signed);
+    }
+
+    public static long getLong(ByteBuffer buffer, int offset, int length, boolean signed) {
+        return getLong(buffer, 0, offset, length, signed);
+    }
+
+    public static long getLong(ByteBuffer buffer, int position, int offset, int length, boolean signed) {
+        int index = position + (offset >> 3);
+        int shift = offset & 7;
+
+        if (shift == 0) {
+            switch (length) {
+                case  8: return signed ? buffer.get(index)        : buffer.get(index) & 0xffL;
+                case 16: return signed ? getShort(buffer, index)  : getShort(buffer, index) & 0xffffL;
+                case 32: return signed ? getInt(buffer, index)    : getInt(buffer, index) & 0xffffffffL;
+                case 64: return getLong(buffer, index);
+            }
+        }
+
+        if (length <= 0 || length > 64) {
+            if (length == 0) {
+                return 0;
+            }
+
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        int  bytes = (shift + length + 7) >> 3;
+        long word;
+
+        if (index + 8 <= buffer.limit()) {
+            word = getLong(buffer, index);
+        }
+        else {
+            word = 0;
+
+            for (int i = 0; i < bytes; ++i) {
+                word |= (buffer.get(index + i) & 0xffL) << (i * 8);
+            }
+        }
+
+        word >>>= shift;
+
+        if (bytes > 8) {
+            word |= (buffer.get(index + 8) & 0xffL) << (64 - shift);
+        }
+
+        if (length == 64) {
+            return word;
+        }
+        else if (signed) {
+            return word << (64 - length) >> (64 - length);
+        }
+        else {
+            return word & (-1L >>> (64 - length));
+        }
+    }
+
+    public static void setInt(ByteBuffer buffer, int offset, int length, int value) {
+        setInt(buffer, 0, offset, length, value);
+    }
+
+    public static void setInt(ByteBuffer buffer, int position, int offset, int length, int value) {
+        if (length > 32) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        setLong(buffer, position, offset, length, value);
+    }
+
+    public static void setLong(ByteBuffer buffer, int offset, int length, long value) {
+        setLong(buffer, 0, offset, length, value);
+    }
+
+    public static void setLong(ByteBuffer buffer, int position, int offset, int length, long value) {
+        int index = position + (offset >> 3);
+        int shift = offset & 7;
+
+        if (shift == 0) {
+            switch (length) {
+                case  8: buffer.put(index, (byte) value);         return;
+                case 16: putShort(buffer, index, (short) value); return;
+                case 32: putInt(buffer, index, (int) value);     return;
+                case 64: putLong(buffer, index, value);          return;
+            }
+        }
+
+        if (length <= 0 || length > 64) {
+            if (length == 0) {
+                return;
+            }
+
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        int  bytes = (shift + length + 7) >> 3;
+        long mask  = -1L >>> (64 - length);
+
+        value &= mask;
+
+        for (int i = 0; i < bytes; ++i) {
+            int  bit = i * 8 - shift;
+            long m   = bit < 0 ? mask  << -bit : mask  >>> bit;
+            long v   = bit < 0 ? value << -bit : value >>> bit;
+
+            buffer.put(index + i, (byte) (buffer.get(index + i) & ~m | v));
+        }
+    }
+
+    // Extracts the same field from count reports laid out stride bytes apart, using one specialised loop per case
+    public static void getInts(ByteBuffer buffer, int position, int stride, int count, int offset, int length, boolean signed,
+                               int[] values, int index) {
+        getInts(buffer, position, stride, count, offset, length, signed, values, index, ColumnKernel.VECTOR);
+    }
+
+    // vector selects the ColumnKernel shift pass for unaligned fields; ColumnBenchmark compares both
+    static void getInts(ByteBuffer buffer, int position, int stride, int count, int offset, int length, boolean signed,
+                        int[] values, int index, boolean vector) {
+        if (length > 32 || length < 0) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+
+        int base  = position + (offset >> 3);
+        int shift = offset & 7;
+        int span  = (shift + length + 7) >> 3;
+        int load  = span <= 4 ? 4 : 8;
+        int fast  = count;
+
+        if (length == 0) {
+            Arrays.fill(values, index, index + count, 0);
+            return;
+        }
+
+        // Only rows whose whole 4 or 8 byte load stays inside the buffer take the fast path
+        if (count > 0 && base + (count - 1) * stride + load > buffer.limit()) {
+            fast = buffer.limit() - base < load || stride <= 0 ? 0 : Math.min(count, (buffer.limit() - base - load) / stride + 1);
+        }
+
+        if (shift == 0 && length == 8) {
+            fast = count;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = buffer.get(p);
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = buffer.get(p) & 0xff;
+                }
+            }
+        }
+        else if (shift == 0 && length == 16) {
+            fast = count;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getShort(buffer, p);
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getShort(buffer, p) & 0xffff;
+                }
+            }
+        }
+        else if (span <= 4 && vector) {
+            // Gathers the words, then shifts and sign-extends them all in one pass
+            for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                values[index + i] = getInt(buffer, p);
+            }
+
+            ColumnKernel.shift(values, index, fast, 32 - shift - length, 32 - length, signed);
+        }
+        else if (span <= 4) {
+            int left  = 32 - shift - length;
+            int right = 32 - length;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getInt(buffer, p) << left >> right;
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = getInt(buffer, p) << left >>> right;
+                }
+            }
+        }
+        else {
+            int left  = 64 - shift - length;
+            int right = 64 - length;
+
+            if (signed) {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = (int) (getLong(buffer, p) << left >> right);
+                }
+            }
+            else {
+                for (int i = 0, p = base; i < fast; ++i, p += stride) {
+                    values[index + i] = (int) (getLong(buffer, p) << left >>> right);
+                }
+            }
+        }
+
+        for (int i = fast; i < count; ++i) {
+            values[index + i] = getInt(buffer, position + i * stride, offset, length, signed);
+        }
+    }
+
+    // Little-endian array access lives in ByteAccess, which has a VarHandle variant for Java 11+
+    static short getShort(byte[] buffer, int index) {
+        return ByteAccess.getShort(buffer, index);
+    }
+
+    static int getInt(byte[] buffer, int index) {
+        return ByteAccess.getInt(buffer, index);
+    }
+
+    static long getLong(byte[] buffer, int index) {
+        return ByteAccess.getLong(buffer, index);
+    }
+
+    static void putShort(byte[] buffer, int index, short value) {
+        ByteAccess.putShort(buffer, index, value);
+    }
+
+    static void putInt(byte[] buffer, int index, int value) {
+        ByteAccess.putInt(buffer, index, value);
+    }
+
+    static void putLong(byte[] buffer, int index, long value) {
+        ByteAccess.putLong(buffer, index, value);
+    }
+
+    static short getShort(ByteBuffer buffer, int index) {
+        short value = buffer.getShort(index);
+
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Short.reverseBytes(value);
+    }
+
+    static int getInt(ByteBuffer buffer, int index) {
+        int value = buffer.getInt(index);
+
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    static long getLong(ByteBuffer buffer, int index) {
+        long value = buffer.getLong(index);
+
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    static void putShort(ByteBuffer buffer, int index, short value) {
+        buffer.putShort(index, buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Short.reverseBytes(value));
+    }
+
+    static void putInt(ByteBuffer buffer, int index, int value) {
+        buffer.putInt(index, buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value));
+    }
+
+    static void putLong(ByteBuffer buffer, int index, long value) {
+        buffer.putLong(index, buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value));
+    }
+}
@@ -0,0 +1,39 @@
+package org.blom.martin.usb;
+
+// Portable little-endian byte array access; see src/main/java11 for the VarHandle version
+final class ByteAccess {
+    private ByteAccess() {
+    }
+
+    static short getShort(byte[] buffer, int index) {
+        return (short) (buffer[index] & 0xff | buffer[index + 1] << 8);
+    }
+
+    static int getInt(byte[] buffer, int index) {
+        return (buffer[index]     & 0xff)       |
+               (buffer[index + 1] & 0xff) <<  8 |
+               (buffer[index + 2] & 0xff) << 16 |
+               (buffer[index + 3]       ) << 24;
+    }
+
+    static long getLong(byte[] buffer, int index) {
+        return getInt(buffer, index) & 0xffffffffL | (long) getInt(buffer, index + 4) << 32;
+    }
+
+    static void putShort(byte[] buffer, int index, short value) {
+        buffer[index]     = (byte) value;
+        buffer[index + 1] = (byte) (value >> 8);
+    }
+
+    static void putInt(byte[] buffer, int index, int value) {
+        buffer[index]     = (byte) value;
+        buffer[index + 1] = (byte) (value >>  8);
+        buffer[index + 2] = (byte) (value >> 16);
+        buffer[index + 3] = (byte) (value >> 24);
+    }
+
+    static void putLong(byte[] buffer, int index, long value) {
+        putInt(buffer, index,     (int) value);
+        putInt(buffer, index + 4, (int) (value >> 32));
+    }
+}
@@ -0,0 +1,29 @@
+package org.blom.martin.usb;
+
+// Portable shift pass of the strided column kernels; see src/main/java17 for the Vector API version
+final class ColumnKernel {
+    static final boolean VECTOR;
+
+    // Assigned here, not in the declaration, so javac does not inline the constant into callers compiled against
+    // this version of the class
+    static {
+        VECTOR = false;
+    }
+
+    private ColumnKernel() {
+    }
+
+    // Turns count gathered little-endian words into field values: value = word << left >> right
+    static void shift(int[] values, int index, int count, int left, int right, boolean signed) {
+        if (signed) {
+            for (int i = index; i < index + count; ++i) {
+                values[i] = values[i] << left >> right;
+            }
+        }
+        else {
+            for (int i = index; i < index + count; ++i) {
+                values[i] = values[i] << left >>> right;
+            }
+        }
+    }
+}
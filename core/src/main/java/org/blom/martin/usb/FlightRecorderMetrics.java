@@ -0,0 +1,14 @@
+package org.blom.martin.usb;
+
+// Metrics that emit JDK Flight Recorder events; see src/main/java11 for the version that does.
+// JFR is not available to Java 8 code, so this portable version is always disabled.
+public class FlightRecorderMetrics
+    extends Metrics {
+    @Override public boolean isEnabled() {
+        return false;
+    }
+
+    @Override public String toString() {
+        return "[FlightRecorderMetrics: unavailable]";
+    }
+}
@@ -0,0 +1,224 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public final class Hex {
+    private static final char[] UPPER = "0123456789ABCDEF".toCharArray();
+    private static final char[] LOWER = "0123456789abcdef".toCharArray();
+
+    // Both digits of every byte value, so encoding is one table lookup per byte
+    private static final char[] PAIRS  = new char[512];
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            PAIRS[i * 2]     = UPPER[i >> 4];
+            PAIRS[i * 2 + 1] = UPPER[i & 0x0f];
+        }
+
+        Arrays.fill(VALUES, (byte) -1);
+
+        for (int i = 0; i < 16; ++i) {
+            VALUES[UPPER[i]] = (byte) i;
+            VALUES[LOWER[i]] = (byte) i;
+        }
+    }
+
+    private Hex() {
+    }
+
+    public static String encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    public static String encode(byte[] data, int offset, int length) {
+        return new String(encode(data, offset, length, new char[length * 2], 0));
+    }
+
+    public static String encode(ByteBuffer buffer) {
+        char[] res = new char[buffer.remaining() * 2];
+
+        for (int i = 0, p = buffer.position(); i < res.length; i += 2, ++p) {
+            int b = (buffer.get(p) & 0xff) << 1;
+
+            res[i]     = PAIRS[b];
+            res[i + 1] = PAIRS[b + 1];
+        }
+
+        return new String(res);
+    }
+
+    public static char[] encode(byte[] data, int offset, int length, char[] out, int index) {
+        for (int i = 0; i < length; ++i, index += 2) {
+            int b = (data[offset + i] & 0xff) << 1;
+
+            out[index]     = PAIRS[b];
+            out[index + 1] = PAIRS[b + 1];
+        }
+
+        return out;
+    }
+
+    public static StringBuilder encode(byte[] data, int offset, int length, StringBuilder sb) {
+        sb.ensureCapacity(sb.length() + length * 2);
+
+        for (int i = 0; i < length; ++i) {
+            int b = (data[offset + i] & 0xff) << 1;
+
+            sb.append(PAIRS[b]).append(PAIRS[b + 1]);
+        }
+
+        return sb;
+    }
+
+    // Formats as "[0000000a, 000000ff]", like Arrays.toString() with %08x elements
+    public static String encode(int[] values) {
+        char[] res = new char[values.length == 0 ? 2 : values.length * 10];
+        int    pos = 0;
+
+        res[pos++] = '[';
+
+        for (int i = 0; i < values.length; ++i) {
+            if (i != 0) {
+                res[pos++] = ',';
+                res[pos++] = ' ';
+            }
+
+            for (int shift = 28; shift >= 0; shift -= 4) {
+                res[pos++] = LOWER[values[i] >>> shift & 0x0f];
+            }
+        }
+
+        res[pos++] = ']';
+
+        return new String(res, 0, pos);
+    }
+
+    public static byte[] decode(CharSequence hex) {
+        byte[] data = new byte[hex.length() / 2];
+
+        decode(hex, 0, hex.length(), data, 0);
+
+        return data;
+    }
+
+    public static int decode(CharSequence hex, int start, int end, byte[] out, int index) {
+        int count = checkedCount(start, end);
+
+        for (int i = 0; i < count; ++i, start += 2) {
+            out[index + i] = (byte) (digit(hex, start) << 4 | digit(hex, start + 1));
+        }
+
+        return count;
+    }
+
+    public static int decode(CharSequence hex, int start, int end, ByteBuffer out) {
+        int count = checkedCount(start, end);
+
+        for (int i = 0; i < count; ++i, start += 2) {
+            out.put((byte) (digit(hex, start) << 4 | digit(hex, start + 1)));
+        }
+
+        return count;
+    }
+
+    // Streams bytes to hex digits, breaking lines after lineLength bytes if lineLength > 0
+    public static long encode(InputStream in, Writer out, int lineLength)
+        throws IOException {
+        byte[] bytes = new byte[8192];
+        char[] chars = new char[bytes.length * 3];
+        long   total = 0;
+        int    line  = 0;
+
+        for (int n = in.read(bytes); n >= 0; n = in.read(bytes)) {
+            int pos = 0;
+
+            for (int i = 0; i < n; ++i) {
+                int b = (bytes[i] & 0xff) << 1;
+
+                chars[pos++] = PAIRS[b];
+                chars[pos++] = PAIRS[b + 1];
+
+                if (lineLength > 0 && ++line == lineLength) {
+                    chars[pos++] = '\n';
+                    line = 0;
+                }
+            }
+
+            out.write(chars, 0, pos);
+            total += n;
+        }
+
+        if (line != 0) {
+            out.write('\n');
+        }
+
+        out.flush();
+        return total;
+    }
+
+    // Streams hex digits to bytes, skipping whitespace between (but not inside) byte pairs
+    public static long decode(Reader in, OutputStream out)
+        throws IOException {
+        char[] chars = new char[8192];
+        byte[] bytes = new byte[chars.length / 2 + 1];
+        long   total = 0;
+        int    high  = -1;
+
+        for (int n = in.read(chars); n >= 0; n = in.read(chars)) {
+            int pos = 0;
+
+            for (int i = 0; i < n; ++i) {
+                char c = chars[i];
+
+                if (high < 0 && Character.isWhitespace(c)) {
+                    continue;
+                }
+
+                int d = c < 128 ? VALUES[c] : -1;
+
+                if (d < 0) {
+                    throw new IOException(String.format("Invalid hex digit '%c' after %d bytes", c, total + pos));
+                }
+                else if (high < 0) {
+                    high = d;
+                }
+                else {
+                    bytes[pos++] = (byte) (high << 4 | d);
+                    high = -1;
+                }
+            }
+
+            out.write(bytes, 0, pos);
+            total += pos;
+        }
+
+        if (high >= 0) {
+            throw new EOFException("Odd number of hex digits after " + total + " bytes");
+        }
+
+        out.flush();
+        return total;
+    }
+
+    private static int checkedCount(int start, int end) {
+        if (((end - start) & 1) != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + (end - start));
+        }
+
+        return (end - start) / 2;
+    }
+
+    private static int digit(CharSequence hex, int index) {
+        char c = hex.charAt(index);
+        int  d = c < 128 ? VALUES[c] : -1;
+
+        if (d < 0) {
+            throw new IllegalArgumentException(String.format("Invalid hex digit '%c' at index %d", c, index));
+        }
+
+        return d;
+    }
+}
@@ -0,0 +1,101 @@
+package org.blom.martin.usb;
+
+public final class HidUnit {
+    public enum UnitSystem { NONE, SI_LINEAR, SI_ROTATION, ENGLISH_LINEAR, ENGLISH_ROTATION, RESERVED, VENDOR }
+
+    public enum Dimension { LENGTH, MASS, TIME, TEMPERATURE, CURRENT, LUMINOUS_INTENSITY }
+
+    private static final UnitSystem[] SYSTEMS = {
+        UnitSystem.NONE, UnitSystem.SI_LINEAR, UnitSystem.SI_ROTATION, UnitSystem.ENGLISH_LINEAR, UnitSystem.ENGLISH_ROTATION,
+        UnitSystem.RESERVED, UnitSystem.RESERVED, UnitSystem.RESERVED, UnitSystem.RESERVED, UnitSystem.RESERVED,
+        UnitSystem.RESERVED, UnitSystem.RESERVED, UnitSystem.RESERVED, UnitSystem.RESERVED, UnitSystem.RESERVED,
+        UnitSystem.VENDOR
+    };
+
+    // Base unit symbols by dimension, for SI linear, SI rotation, English linear and English rotation
+    private static final String[][] SYMBOLS = {
+        { "cm",   "rad", "in",   "deg"  },
+        { "g",    "g",   "slug", "slug" },
+        { "s",    "s",   "s",    "s"    },
+        { "K",    "K",   "F",    "F"    },
+        { "A",    "A",   "A",    "A"    },
+        { "cd",   "cd",  "cd",   "cd"   },
+    };
+
+    public static final HidUnit NONE = new HidUnit(0);
+
+    private final int unit;
+    private final UnitSystem system;
+    private final int[] exponents;
+
+    public HidUnit(int unit) {
+        this.unit      = unit;
+        this.system    = SYSTEMS[unit & 0x0f];
+        this.exponents = new int[Dimension.values().length];
+
+        for (int i = 0; i < exponents.length; ++i) {
+            exponents[i] = nibble(unit >> (4 * (i + 1)));
+        }
+    }
+
+    // The Unit Exponent item is a signed nibble, but some descriptors store it as a signed byte instead
+    public static int exponent(int unitExponent) {
+        return unitExponent >= 8 && unitExponent <= 15 ? unitExponent - 16 : unitExponent;
+    }
+
+    public int unit() {
+        return unit;
+    }
+
+    public UnitSystem system() {
+        return system;
+    }
+
+    public int exponent(Dimension dimension) {
+        return exponents[dimension.ordinal()];
+    }
+
+    public boolean isNone() {
+        return system == UnitSystem.NONE;
+    }
+
+    public String symbol() {
+        if (system == UnitSystem.NONE || system == UnitSystem.RESERVED || system == UnitSystem.VENDOR) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < exponents.length; ++i) {
+            if (exponents[i] != 0) {
+                if (sb.length() != 0) {
+                    sb.append(' ');
+                }
+
+                sb.append(SYMBOLS[i][system.ordinal() - 1]);
+
+                if (exponents[i] != 1) {
+                    sb.append('^').append(exponents[i]);
+                }
+            }
+        }
+
+        return sb.toString();
+    }
+
+    @Override public boolean equals(Object obj) {
+        return obj instanceof HidUnit && ((HidUnit) obj).unit == unit;
+    }
+
+    @Override public int hashCode() {
+        return unit;
+    }
+
+    @Override public String toString() {
+        return String.format("[HidUnit: unit=%08x system=%s symbol=%s]", unit, system, symbol());
+    }
+
+    private static int nibble(int value) {
+        return (value & 0x0f) << 28 >> 28;
+    }
+}
@@ -0,0 +1,135 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+// Instrumentation hook, see ReportDescriptor.setMetrics(). All callbacks may arrive concurrently. Only one Metrics
+// is installed at a time; use Metrics.of() to feed several, such as Statistics and FlightRecorderMetrics.
+public abstract class Metrics {
+    public static final Metrics NONE = new Metrics() {
+        @Override public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    // Forwards every callback to each of the given metrics that is enabled at the time
+    public static Metrics of(Metrics... metrics) {
+        return new Composite(metrics.clone());
+    }
+
+    // When false, callers skip System.nanoTime() and all other callbacks
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public void parsed(int bytes, long nanos) {
+    }
+
+    public void decoded(Control.Type type, int reportID, int reports) {
+    }
+
+    // Asked before each single-report ReportLayout.decode(); return true to have it timed for decodeLatency().
+    // Called on every decode, so sampling decisions must be cheap
+    public boolean timeDecode() {
+        return false;
+    }
+
+    public void decodeLatency(Control.Type type, int reportID, long nanos) {
+    }
+
+    public void batch(Control.Type type, int reports, int bytes, long nanos) {
+    }
+
+    public void unknownReport(Control.Type type, int reportID) {
+    }
+
+    // A report that does not fit in the remaining data
+    public void malformedReport(Control.Type type, int reportID, int available) {
+    }
+
+    // A decode timed for one member is passed to all of them, so sampled members may see extra latencies
+    private static final class Composite
+        extends Metrics {
+        private final Metrics[] metrics;
+
+        private Composite(Metrics[] metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override public boolean isEnabled() {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override public void parsed(int bytes, long nanos) {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    m.parsed(bytes, nanos);
+                }
+            }
+        }
+
+        @Override public void decoded(Control.Type type, int reportID, int reports) {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    m.decoded(type, reportID, reports);
+                }
+            }
+        }
+
+        @Override public boolean timeDecode() {
+            boolean time = false;
+
+            // Every member is asked, so that each keeps its own sampling rate
+            for (Metrics m : metrics) {
+                if (m.isEnabled() && m.timeDecode()) {
+                    time = true;
+                }
+            }
+
+            return time;
+        }
+
+        @Override public void decodeLatency(Control.Type type, int reportID, long nanos) {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    m.decodeLatency(type, reportID, nanos);
+                }
+            }
+        }
+
+        @Override public void batch(Control.Type type, int reports, int bytes, long nanos) {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    m.batch(type, reports, bytes, nanos);
+                }
+            }
+        }
+
+        @Override public void unknownReport(Control.Type type, int reportID) {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    m.unknownReport(type, reportID);
+                }
+            }
+        }
+
+        @Override public void malformedReport(Control.Type type, int reportID, int available) {
+            for (Metrics m : metrics) {
+                if (m.isEnabled()) {
+                    m.malformedReport(type, reportID, available);
+                }
+            }
+        }
+
+        @Override public String toString() {
+            return String.format("[Metrics: %s]", Arrays.toString(metrics));
+        }
+    }
+}
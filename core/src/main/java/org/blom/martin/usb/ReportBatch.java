@@ -0,0 +1,312 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.blom.martin.usb.ReportDescriptor.Report;
+
+public final class ReportBatch {
+    private final Control.Type type;
+    private final boolean numbered;
+    private final ReportLayout[] layouts   = new ReportLayout[256];
+    private final int[]          lengths   = new int[256];
+    private final int[]          counts    = new int[256];
+    private final int[][]        positions = new int[256][];
+    private final int[][][]      columns   = new int[256][][];
+    private final int[]          capacity  = new int[256];
+    private final int[]          scanned   = new int[256];
+
+    private int size;
+
+    public ReportBatch(ReportDescriptor descriptor, Control.Type type) {
+        this(descriptor, type, 64);
+    }
+
+    public ReportBatch(ReportDescriptor descriptor, Control.Type type, int capacity) {
+        for (Report report : descriptor.reports()) {
+            if (report.reportID < 0 || report.reportID > 255) {
+                throw new IllegalArgumentException("Invalid report ID " + report.reportID);
+            }
+
+            ReportLayout layout = report.types.contains(type) ? descriptor.layout(report.reportID, type) : null;
+
+            // Reports the descriptor could not compile a layout for are skipped, and rejected like unknown IDs
+            if (layout != null) {
+                capacity = Math.max(capacity, 1);
+
+                layouts[report.reportID]       = layout;
+                lengths[report.reportID]       = descriptor.reportLength(report.reportID, type);
+                positions[report.reportID]     = new int[capacity];
+                columns[report.reportID]       = new int[layout.fieldCount()][capacity];
+                this.capacity[report.reportID] = capacity;
+            }
+        }
+
+        this.type     = type;
+        this.numbered = descriptor.isNumbered();
+    }
+
+    public Control.Type type() {
+        return type;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int count(int reportID) {
+        return counts[reportID];
+    }
+
+    public ReportLayout layout(int reportID) {
+        return layouts[reportID];
+    }
+
+    public int[] column(int reportID, int field) {
+        return columns[reportID][field];
+    }
+
+    public int[] columnForUsage(int reportID, int usage) {
+        ReportLayout layout = layouts[reportID];
+        int field = layout == null ? -1 : layout.indexOf(usage);
+
+        return field < 0 ? null : columns[reportID][field];
+    }
+
+    public ReportBatch clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+
+        return this;
+    }
+
+    // Appends the rows of another batch for the same descriptor and type, as if they had been decoded here
+    public ReportBatch append(ReportBatch other) {
+        if (other.type != type) {
+            throw new IllegalArgumentException("Cannot append " + other + " to " + this);
+        }
+
+        for (int id = 0; id < layouts.length; ++id) {
+            int rows = other.counts[id];
+
+            if (rows != 0) {
+                if (other.layouts[id] != layouts[id]) {
+                    throw new IllegalArgumentException("Report " + id + " of " + other + " has a different layout");
+                }
+
+                int[][] cols = columns[id];
+
+                if (counts[id] + rows > capacity[id]) {
+                    capacity[id] = Math.max(capacity[id] * 2, counts[id] + rows);
+
+                    for (int field = 0; field < cols.length; ++field) {
+                        cols[field] = Arrays.copyOf(cols[field], capacity[id]);
+                    }
+                }
+
+                for (int field = 0; field < cols.length; ++field) {
+                    System.arraycopy(other.columns[id][field], 0, cols[field], counts[id], rows);
+                }
+
+                counts[id] += rows;
+                size       += rows;
+            }
+        }
+
+        return this;
+    }
+
+    public int decode(byte[] buffer, int offset, int length) {
+        Metrics metrics = ReportDescriptor.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int consumed = scan(buffer, offset, length);
+
+        for (int id = 0; id < layouts.length; ++id) {
+            if (scanned[id] != 0) {
+                decodeRows(buffer, id, 0, scanned[id]);
+            }
+        }
+
+        int rows = commit();
+
+        if (metrics.isEnabled()) {
+            metrics.batch(type, rows, consumed, System.nanoTime() - start);
+        }
+
+        return consumed;
+    }
+
+    public int decode(ByteBuffer buffer, int offset, int length) {
+        Metrics metrics = ReportDescriptor.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int consumed = scan(buffer, offset, length);
+
+        for (int id = 0; id < layouts.length; ++id) {
+            if (scanned[id] != 0) {
+                decodeRows(buffer, id, 0, scanned[id]);
+            }
+        }
+
+        int rows = commit();
+
+        if (metrics.isEnabled()) {
+            metrics.batch(type, rows, consumed, System.nanoTime() - start);
+        }
+
+        return consumed;
+    }
+
+    // Finds the reports in a chunk and reserves their rows, without decoding any fields yet
+    int scan(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+
+        Arrays.fill(scanned, 0);
+
+        while (pos < end) {
+            int id = numbered ? buffer[pos] & 0xff : 0;
+            ReportLayout layout = layouts[id];
+
+            if (layout == null || lengths[id] == 0 || pos + lengths[id] > end) {
+                reject(id, layout, end - pos);
+                break;
+            }
+
+            pos = mark(id, layout, pos);
+        }
+
+        return pos - offset;
+    }
+
+    int scan(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+
+        Arrays.fill(scanned, 0);
+
+        while (pos < end) {
+            int id = numbered ? buffer.get(pos) & 0xff : 0;
+            ReportLayout layout = layouts[id];
+
+            if (layout == null || lengths[id] == 0 || pos + lengths[id] > end) {
+                reject(id, layout, end - pos);
+                break;
+            }
+
+            pos = mark(id, layout, pos);
+        }
+
+        return pos - offset;
+    }
+
+    // Decodes the scanned rows [from, to) of one report ID; disjoint ranges may be decoded concurrently
+    void decodeRows(byte[] buffer, int id, int from, int to) {
+        ReportLayout layout = layouts[id];
+        int stride = stride(id, from, to);
+
+        for (int field = 0; field < layout.fieldCount(); ++field) {
+            if (stride > 0) {
+                layout.decodeColumn(field, buffer, positions[id][from], stride, to - from, columns[id][field], counts[id] + from);
+            }
+            else {
+                layout.decodeColumn(field, buffer, positions[id], from, to - from, columns[id][field], counts[id] + from);
+            }
+        }
+    }
+
+    void decodeRows(ByteBuffer buffer, int id, int from, int to) {
+        ReportLayout layout = layouts[id];
+        int stride = stride(id, from, to);
+
+        for (int field = 0; field < layout.fieldCount(); ++field) {
+            if (stride > 0) {
+                layout.decodeColumn(field, buffer, positions[id][from], stride, to - from, columns[id][field], counts[id] + from);
+            }
+            else {
+                layout.decodeColumn(field, buffer, positions[id], from, to - from, columns[id][field], counts[id] + from);
+            }
+        }
+    }
+
+    int scanned(int id) {
+        return scanned[id];
+    }
+
+    // Makes the decoded rows visible and returns how many there were
+    int commit() {
+        Metrics metrics = ReportDescriptor.getMetrics();
+        int rows = 0;
+
+        for (int id = 0; id < layouts.length; ++id) {
+            if (scanned[id] != 0 && metrics.isEnabled()) {
+                metrics.decoded(type, id, scanned[id]);
+            }
+
+            counts[id] += scanned[id];
+            rows       += scanned[id];
+            scanned[id] = 0;
+        }
+
+        size += rows;
+        return rows;
+    }
+
+    @Override public String toString() {
+        return String.format("[ReportBatch: type=%s numbered=%b size=%d]", type, numbered, size);
+    }
+
+    // Returns the distance between consecutive reports if the rows were back to back, else 0
+    private int stride(int id, int from, int to) {
+        int[] pos  = positions[id];
+        int stride = to - from > 1 ? pos[from + 1] - pos[from] : 0;
+
+        for (int row = from + 2; row < to && stride > 0; ++row) {
+            if (pos[row] - pos[row - 1] != stride) {
+                stride = 0;
+            }
+        }
+
+        return stride;
+    }
+
+    // A trailing partial report is not counted, since the caller passes it again with the rest of its bytes
+    private void reject(int id, ReportLayout layout, int available) {
+        Metrics metrics = ReportDescriptor.getMetrics();
+
+        if (metrics.isEnabled()) {
+            if (layout == null) {
+                metrics.unknownReport(type, id);
+            }
+            else if (lengths[id] == 0) {
+                metrics.malformedReport(type, id, available);
+            }
+        }
+    }
+
+    private int mark(int id, ReportLayout layout, int pos) {
+        int row = scanned[id]++;
+
+        if (row == positions[id].length) {
+            positions[id] = Arrays.copyOf(positions[id], row * 2);
+        }
+
+        if (counts[id] + row == capacity[id]) {
+            int[][] cols = columns[id];
+
+            capacity[id] *= 2;
+
+            for (int field = 0; field < cols.length; ++field) {
+                cols[field] = Arrays.copyOf(cols[field], capacity[id]);
+            }
+        }
+
+        if (numbered) {
+            ++pos;
+        }
+
+        positions[id][row] = pos;
+
+        return pos + layout.byteLength();
+    }
+}
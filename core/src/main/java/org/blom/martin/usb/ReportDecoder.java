@@ -0,0 +1,5 @@
+package org.blom.martin.usb;
+
+public interface ReportDecoder {
+    public int[] decode(byte[] buffer, int position, int[] values);
+}
@@ -0,0 +1,1141 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class ReportDescriptor {
+    private static volatile Metrics metrics = Metrics.NONE;
+
+    private static final Control.Type[] LOOKUP_ORDER = { Control.Type.INPUT, Control.Type.FEATURE, Control.Type.OUTPUT };
+
+    public final Map<Integer, Report> reports;
+
+    // Dense per-type dispatch tables indexed by the report ID byte; lengths include the ID prefix
+    private final Report[]         reportTable = new Report[256];
+    private final ReportLayout[][] layoutTable = new ReportLayout[Control.Type.values().length][256];
+    private final int[][]          lengthTable = new int[Control.Type.values().length][256];
+    private final UsageIndex[]     usageIndex  = new UsageIndex[Control.Type.values().length];
+
+    private final boolean numbered;
+
+    public ReportDescriptor(byte[] bytes)
+        throws IOException {
+        this(bytes, 0, bytes.length);
+    }
+
+    public ReportDescriptor(byte[] bytes, int offset, int length)
+        throws IOException {
+        Metrics metrics = ReportDescriptor.metrics;
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        Parser parser = new Parser();
+        Item item = new Item();
+
+        for (int pos = item.parse(bytes, offset, offset + length); pos >= 0; pos = item.parse(bytes, pos, offset + length)) {
+            parser.add(item);
+        }
+
+        reports  = parser.reports();
+        numbered = isNumbered(reports.values());
+        buildLayouts();
+
+        if (metrics.isEnabled()) {
+            metrics.parsed(length, System.nanoTime() - start);
+        }
+    }
+
+    public ReportDescriptor(ByteBuffer buffer)
+        throws IOException {
+        Metrics metrics = ReportDescriptor.metrics;
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        Parser parser = new Parser();
+        Item item = new Item();
+
+        for (int pos = item.parse(buffer, buffer.position(), buffer.limit()); pos >= 0; pos = item.parse(buffer, pos, buffer.limit())) {
+            parser.add(item);
+        }
+
+        reports  = parser.reports();
+        numbered = isNumbered(reports.values());
+        buildLayouts();
+
+        if (metrics.isEnabled()) {
+            metrics.parsed(buffer.remaining(), System.nanoTime() - start);
+        }
+    }
+
+    public ReportDescriptor(InputStream is)
+        throws IOException {
+        this(readFully(is));
+    }
+
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    public static void setMetrics(Metrics metrics) {
+        ReportDescriptor.metrics = metrics != null ? metrics : Metrics.NONE;
+    }
+
+    public java.util.Collection<Report> reports() {
+        return reports.values();
+    }
+
+    public Report report(int reportID) {
+        return (reportID & ~0xff) == 0 ? reportTable[reportID] : null;
+    }
+
+    // True if reports are prefixed with a report ID byte
+    public boolean isNumbered() {
+        return numbered;
+    }
+
+    // Returns the length of a report including its ID prefix, or 0 if there is no such report
+    public int reportLength(int reportID, Control.Type type) {
+        return (reportID & ~0xff) == 0 ? lengthTable[type.ordinal()][reportID] : 0;
+    }
+
+    // Returns the layout of the report at offset, or null (counted by the metrics) if the ID is unknown
+    // or the packet is shorter than the report
+    public ReportLayout dispatch(byte[] packet, int offset, int length, Control.Type type) {
+        int id = numbered ? (length > 0 ? packet[offset] & 0xff : -1) : 0;
+
+        return dispatch(id, length, type);
+    }
+
+    public ReportLayout dispatch(ByteBuffer packet, int offset, int length, Control.Type type) {
+        int id = numbered ? (length > 0 ? packet.get(offset) & 0xff : -1) : 0;
+
+        return dispatch(id, length, type);
+    }
+
+    public Set<Integer> usageSet(Control.Type type) {
+        Set<Integer> result = new TreeSet<Integer>();
+
+        for (Report report : reports()) {
+            if (report.types.contains(type)) {
+                for (Control control : report.controls) {
+                    for (Collection collection = control.parent; collection != null; collection = collection.parent) {
+                        for (int usage : collection.usages) {
+                            result.add(usage);
+                        }
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public ReportDescriptor evaluate(int report, Control.Type type, Evaluator cb) {
+        Map<Collection, Boolean> knownCollections = new IdentityHashMap<Collection, Boolean>();
+        int offset = 0;
+
+        for (Control control : checkedReport(report, type).controls) {
+            LocalState ls = control.ls;
+
+            if (control.type == type) {
+                if (knownCollection(control.parent, cb, knownCollections) && cb.control(control)) {
+                    Range range = ls.usages.isEmpty() ? ls.usage : ls.usages.get(0);
+                    int[] list  = range.min != null && range.max != null ? null : range.list();
+
+                    for (int i = 0; i < control.reportCount; ++i) {
+                        if (control.flags.contains(Control.Flag.CONSTANT)) {
+                            cb.constant(control, offset + i * control.reportSize);
+                        }
+                        else if (control.flags.contains(Control.Flag.VARIABLE)) {
+                            cb.variable(control, ls.usagesForIndex(i), offset + i * control.reportSize);
+                        }
+                        else if (list == null) {
+                            cb.array(control, range.min, range.max, offset + i * control.reportSize);
+                        }
+                        else {
+                            cb.array(control, list, offset + i * control.reportSize);
+                        }
+                    }
+                }
+
+                offset += control.reportSize * control.reportCount;
+            }
+        }
+
+        return this;
+    }
+
+    public ReportLayout compile(int report, Control.Type type) {
+        return compile(new ReportLayout.Builder(report, type));
+    }
+
+    // Applies the collection() and control() callbacks of filter once, keeping only the fields it accepts
+    public ReportLayout compile(int report, Control.Type type, Evaluator filter) {
+        return compile(new ReportLayout.Builder(report, type).filter(filter));
+    }
+
+    public ReportLayout compile(int report, Control.Type type, int... usages) {
+        return compile(new ReportLayout.Builder(report, type).select(usages));
+    }
+
+    public ReportLayout compile(int report, Control.Type type, Evaluator filter, int... usages) {
+        return compile(new ReportLayout.Builder(report, type).filter(filter).select(usages));
+    }
+
+    public int decode(byte[] buffer, int offset, int length, ReportBatch batch) {
+        return batch.decode(buffer, offset, length);
+    }
+
+    public int decode(ByteBuffer buffer, int offset, int length, ReportBatch batch) {
+        return batch.decode(buffer, offset, length);
+    }
+
+    public ReportLayout layout(int report, Control.Type type) {
+        return (report & ~0xff) == 0 ? layoutTable[type.ordinal()][report] : null;
+    }
+
+    // Looks in INPUT, then FEATURE, then OUTPUT reports and returns the first field with the usage
+    public ReportField getField(int usage) {
+        for (Control.Type type : LOOKUP_ORDER) {
+            ReportField field = getField(usage, type);
+
+            if (field != null) {
+                return field;
+            }
+        }
+
+        return null;
+    }
+
+    public ReportField getField(int usage, Control.Type type) {
+        return usageIndex[type.ordinal()].get(usage);
+    }
+
+    public static int peek(byte[] buffer, int offset, int length, boolean signed) {
+        return BitField.getInt(buffer, offset, length, signed);
+    }
+
+    public static void poke(byte[] buffer, int offset, int length, int value) {
+        BitField.setInt(buffer, offset, length, value);
+    }
+
+    public static String toHexString(byte[] data) {
+        return Hex.encode(data);
+    }
+
+    // Throws IllegalArgumentException on odd-length input or a non-hex digit; before 1.1 these were truncated or
+    // decoded into garbage
+    public static byte[] fromHexString(String hex) {
+        return Hex.decode(hex);
+    }
+
+    public static String toHexString(int[] values) {
+        return Hex.encode(values);
+    }
+
+    private static byte[] readFully(InputStream is)
+        throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+            os.write(buffer, 0, n);
+        }
+
+        return os.toByteArray();
+    }
+
+    private static void addControl(Map<Integer, List<Control>> controls, Control control) {
+        List<Control> list = controls.get(control.reportID);
+
+        if (list == null) {
+            list = new ArrayList<Control>();
+            controls.put(control.reportID, list);
+        }
+
+        list.add(control);
+    }
+
+    private ReportLayout compile(ReportLayout.Builder builder) {
+        int bitLength = 0;
+
+        builder.numbered(numbered);
+        evaluate(builder.reportID(), builder.type(), builder);
+
+        for (Control control : reportTable[builder.reportID()].controls) {
+            if (control.type == builder.type()) {
+                bitLength += control.reportSize * control.reportCount;
+            }
+        }
+
+        return builder.build(bitLength);
+    }
+
+    private Report checkedReport(int reportID, Control.Type type) {
+        Report report = report(reportID);
+
+        if (report == null) {
+            if (metrics.isEnabled()) {
+                metrics.unknownReport(type, reportID);
+            }
+
+            throw new NoSuchElementException("No report with ID " + reportID);
+        }
+
+        return report;
+    }
+
+    private ReportLayout dispatch(int id, int length, Control.Type type) {
+        if (id < 0) {
+            return null;
+        }
+
+        ReportLayout layout = layoutTable[type.ordinal()][id];
+
+        if (layout == null) {
+            if (metrics.isEnabled()) {
+                metrics.unknownReport(type, id);
+            }
+        }
+        else if (length < lengthTable[type.ordinal()][id]) {
+            if (metrics.isEnabled()) {
+                metrics.malformedReport(type, id, length);
+            }
+
+            layout = null;
+        }
+
+        return layout;
+    }
+
+    private static boolean isNumbered(java.util.Collection<Report> reports) {
+        for (Report report : reports) {
+            if (report.reportID != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void buildLayouts() {
+        for (Report report : reports()) {
+            // IDs outside one byte cannot appear in a report, so they are left out of the tables
+            if ((report.reportID & ~0xff) == 0) {
+                reportTable[report.reportID] = report;
+            }
+        }
+
+        for (Control.Type type : Control.Type.values()) {
+            List<ReportField> fields = new ArrayList<ReportField>();
+
+            for (Report report : reports()) {
+                if (report.types.contains(type) && reportTable[report.reportID & 0xff] == report) {
+                    ReportLayout layout;
+
+                    try {
+                        layout = compile(report.reportID, type);
+                    }
+                    catch (RuntimeException ex) {
+                        // A report the layout compiler cannot handle is left without a layout, as if it did
+                        // not exist; evaluate() still throws for it
+                        continue;
+                    }
+
+                    layoutTable[type.ordinal()][report.reportID] = layout;
+                    lengthTable[type.ordinal()][report.reportID] = (numbered ? 1 : 0) + layout.byteLength();
+
+                    for (int i = 0; i < layout.fieldCount(); ++i) {
+                        if (!layout.isArray(i) && layout.usage(i) != 0) {
+                            fields.add(layout.field(i));
+                        }
+                    }
+                }
+            }
+
+            usageIndex[type.ordinal()] = new UsageIndex(fields);
+        }
+    }
+
+    private static boolean knownCollection(Collection collection, Evaluator cb, Map<Collection, Boolean> knownCollections) {
+        Boolean known = collection.parent == null ? true : knownCollection(collection.parent, cb, knownCollections);
+
+        if (known) {
+            known = knownCollections.get(collection);
+
+            if (known == null) {
+                known = cb.collection(collection);
+                knownCollections.put(collection, known);
+            }
+        }
+
+        return known;
+    }
+
+    public interface Evaluator {
+        public boolean collection(Collection collection);
+        public boolean control(Control control);
+
+        public void constant(Control control, int offset);
+        public void array(Control control, int usageMinimum, int usageMaximum, int offset);
+        public void variable(Control control, int[] usages, int offset);
+
+        // Arrays that list their usages instead of a Usage Minimum/Maximum range, so that the value v
+        // selects usages[v - logicalMinimum]. By default, a list of consecutive usages is passed to the
+        // range callback, and any other list is ignored.
+        public default void array(Control control, int[] usages, int offset) {
+            for (int i = 1; i < usages.length; ++i) {
+                if (usages[i] != usages[0] + i) {
+                    return;
+                }
+            }
+
+            if (usages.length != 0) {
+                array(control, usages[0], usages[usages.length - 1], offset);
+            }
+        }
+    }
+
+    public static class Item {
+        public enum Type { MAIN, GLOBAL, LOCAL, RESERVED };
+
+        private static final Type[] TYPES = Type.values();
+
+        public Type    type;
+        public int     tag;
+        public int     length;
+        public int     value;
+
+        // A copy of the long item data, kept for compatibility; longData() and copyLongData() read it in place
+        @Deprecated
+        public byte[]  longValue;
+
+        // Where the long item data lives in the parsed array or buffer
+        private byte[]     longArray;
+        private ByteBuffer longBuffer;
+        private int        longOffset;
+
+        public int unsigned() {
+            return length == 1 ? value & 0xff : length == 2 ? value & 0xffff : value;
+        }
+
+        public boolean isLong() {
+            return longArray != null || longBuffer != null;
+        }
+
+        // Returns a view of the long item data that shares content with the parsed array or buffer
+        public ByteBuffer longData() {
+            if (longArray != null) {
+                return ByteBuffer.wrap(longArray, longOffset, length).slice();
+            }
+            else if (longBuffer != null) {
+                ByteBuffer view = longBuffer.duplicate();
+
+                view.limit(longOffset + length).position(longOffset);
+                return view.slice();
+            }
+            else {
+                return null;
+            }
+        }
+
+        public int copyLongData(byte[] out, int index) {
+            if (longArray != null) {
+                System.arraycopy(longArray, longOffset, out, index, length);
+            }
+            else if (longBuffer != null) {
+                ByteBuffer view = longBuffer.duplicate();
+
+                view.position(longOffset);
+                view.get(out, index, length);
+            }
+            else {
+                return 0;
+            }
+
+            return length;
+        }
+
+        @Override public String toString() {
+            return String.format("[Item type=%-8s %02x=%s length=%d]", type, tag,
+                                 longArray != null ? Hex.encode(longArray, longOffset, length) :
+                                 longBuffer != null ? Hex.encode(longData()) : String.format("%08x", value),
+                                 length);
+        }
+
+        public int parse(byte[] bytes, int offset, int limit)
+            throws EOFException {
+            if (offset >= limit) {
+                return -1;
+            }
+
+            int b = bytes[offset++] & 0xff;
+
+            type      = TYPES[(b >> 2) & 0x03];
+            tag       = (b >> 4) & 0x0f;
+            value      = 0;
+            longValue  = null;
+            longArray  = null;
+            longBuffer = null;
+
+            if (tag == 0x0f && type == Type.RESERVED) {
+                checkAvailable(offset + 2, limit);
+                length = bytes[offset] & 0xff;
+                tag    = bytes[offset + 1] & 0xff;
+                offset += 2;
+
+                checkAvailable(offset + length, limit);
+                longArray  = bytes;
+                longOffset = offset;
+                longValue  = Arrays.copyOfRange(bytes, offset, offset + length);
+
+                return offset + length;
+            }
+
+            switch (b & 0x03) {
+                case 0x00:
+                    length = 0;
+                    return offset;
+
+                case 0x01:
+                    checkAvailable(offset + 1, limit);
+                    length = 1;
+                    value  = bytes[offset];
+                    return offset + 1;
+
+                case 0x02:
+                    checkAvailable(offset + 2, limit);
+                    length = 2;
+                    value  = BitField.getShort(bytes, offset);
+                    return offset + 2;
+
+                default:
+                    checkAvailable(offset + 4, limit);
+                    length = 4;
+                    value  = BitField.getInt(bytes, offset);
+                    return offset + 4;
+            }
+        }
+
+        public int parse(ByteBuffer buffer, int offset, int limit)
+            throws EOFException {
+            if (offset >= limit) {
+                return -1;
+            }
+
+            int b = buffer.get(offset++) & 0xff;
+
+            type      = TYPES[(b >> 2) & 0x03];
+            tag       = (b >> 4) & 0x0f;
+            value      = 0;
+            longValue  = null;
+            longArray  = null;
+            longBuffer = null;
+
+            if (tag == 0x0f && type == Type.RESERVED) {
+                checkAvailable(offset + 2, limit);
+                length = buffer.get(offset) & 0xff;
+                tag    = buffer.get(offset + 1) & 0xff;
+                offset += 2;
+
+                checkAvailable(offset + length, limit);
+                longBuffer = buffer;
+                longOffset = offset;
+                longValue  = new byte[length];
+                copyLongData(longValue, 0);
+
+                return offset + length;
+            }
+
+            switch (b & 0x03) {
+                case 0x00:
+                    length = 0;
+                    return offset;
+
+                case 0x01:
+                    checkAvailable(offset + 1, limit);
+                    length = 1;
+                    value  = buffer.get(offset);
+                    return offset + 1;
+
+                case 0x02:
+                    checkAvailable(offset + 2, limit);
+                    length = 2;
+                    value  = BitField.getShort(buffer, offset);
+                    return offset + 2;
+
+                default:
+                    checkAvailable(offset + 4, limit);
+                    length = 4;
+                    value  = BitField.getInt(buffer, offset);
+                    return offset + 4;
+            }
+        }
+
+        public static Item read(InputStream is)
+            throws IOException {
+            int b = is.read();
+
+            if (b < 0) {
+                return null;
+            }
+
+            Item item = new Item();
+
+            switch (b & 0x0c) {
+                case 0x00: item.type = Type.MAIN;     break;
+                case 0x04: item.type = Type.GLOBAL;   break;
+                case 0x08: item.type = Type.LOCAL;    break;
+                case 0x0c: item.type = Type.RESERVED; break;
+            }
+
+            item.tag = (b >> 4) & 0x0f;
+
+            if (item.tag == 0x0f && item.type == Type.RESERVED) {
+                item.length = readByte(is);
+                item.tag = readByte(is);
+                item.longValue = new byte[item.length];
+
+                for (int i = 0; i < item.longValue.length; ++i) {
+                    item.longValue[i] = (byte) readByte(is);
+                }
+
+                item.longArray  = item.longValue;
+                item.longOffset = 0;
+            }
+            else {
+                switch (b & 0x03) {
+                    case 0x00: item.length = 0; break;
+                    case 0x01: item.length = 1; item.value = (int) (byte) readByte(is); break;
+                    case 0x02: item.length = 2; item.value = (int) (short) (readByte(is) | (readByte(is) << 8)); break;
+                    case 0x03: item.length = 4; item.value = readByte(is) | (readByte(is) << 8) | (readByte(is) << 16) | (readByte(is) << 24); break;
+                }
+            }
+
+            return item;
+        }
+
+        private static void checkAvailable(int end, int limit)
+            throws EOFException {
+            if (end > limit) {
+                throw new EOFException("Unexpected end of stream");
+            }
+        }
+
+        private static int readByte(InputStream is)
+            throws IOException {
+            int b = is.read();
+
+            if (b < 0) {
+                throw new EOFException("Unexpected end of stream");
+            }
+
+            return b;
+        }
+    }
+
+    public static class GlobalState
+        implements Cloneable {
+        public int usagePage       = 0;
+        public int logicalMinimum  = 0;
+        public int logicalMaximum  = 0;
+        public int physicalMinimum = 0;
+        public int physicalMaximum = 0;
+        public int unit            = 0;
+        public int unitExponent    = 0;
+        public int reportID        = 0;
+        public int reportSize      = 0;
+        public int reportCount     = 0;
+
+        private GlobalState() {
+        }
+
+        public GlobalState assignFrom(GlobalState gs) {
+            usagePage       = gs.usagePage;
+            logicalMinimum  = gs.logicalMinimum;
+            logicalMaximum  = gs.logicalMaximum;
+            physicalMinimum = gs.physicalMinimum;
+            physicalMaximum = gs.physicalMaximum;
+            unit            = gs.unit;
+            unitExponent    = gs.unitExponent;
+            reportID        = gs.reportID;
+            reportSize      = gs.reportSize;
+            reportCount     = gs.reportCount;
+
+            return this;
+        }
+
+        @Override public GlobalState clone() {
+            return new GlobalState().assignFrom(this);
+        }
+
+        @Override public String toString() {
+            return String.format("[GlobalState: usagePage=%04x logicalMinimum=%d logicalMaximum=%d physicalMinimum=%d physicalMaximum=%d " +
+                                 "unit=%08x unitExponent=%d reportID=%d reportSize=%d reportCount=%d]",
+                                 usagePage, logicalMinimum, logicalMaximum, physicalMinimum, physicalMaximum,
+                                 unit, unitExponent, reportID, reportSize, reportCount);
+        }
+    };
+
+    private static class Parser {
+        private final Map<Integer, List<Control>> controls = new TreeMap<Integer, List<Control>>();
+        private final Deque<GlobalState> ss = new ArrayDeque<GlobalState>();
+        private final LocalState ls = new LocalState();
+
+        private GlobalState gs = new GlobalState();
+        private Collection cc = null;
+        private int collectionCounter = 0;
+        private int lastTag = -1;
+
+        private void add(Item item) {
+            boolean repeat = item.tag == lastTag;
+
+            switch (item.type) {
+                case MAIN:
+                    switch (item.tag) {
+                        case  8: addControl(controls, new Control(cc, gs, ls.freeze(), Control.Type.INPUT,   item.unsigned())); break;
+                        case  9: addControl(controls, new Control(cc, gs, ls.freeze(), Control.Type.OUTPUT,  item.unsigned())); break;
+                        case 11: addControl(controls, new Control(cc, gs, ls.freeze(), Control.Type.FEATURE, item.unsigned())); break;
+
+                        case 10:
+                            cc = new Collection(++collectionCounter, cc, gs, ls, item.unsigned());
+                            break;
+
+                        case 12:
+                            if (cc == null) {
+                                throw new IllegalArgumentException(item + " outside Collection");
+                            }
+
+                            cc = cc.parent;
+                            break;
+
+                        default:
+                            throw new IllegalArgumentException("Unsupported global tag in " + item);
+                    }
+
+                    ls.reset();
+                    break;
+
+                case GLOBAL:
+                    switch (item.tag) {
+                        case  0: gs.usagePage       = item.unsigned(); break;
+                        case  1: gs.logicalMinimum  = item.value;      break;
+                        case  2: gs.logicalMaximum  = item.value;      break;
+                        case  3: gs.physicalMinimum = item.value;      break;
+                        case  4: gs.physicalMaximum = item.value;      break;
+                        case  5: gs.unitExponent    = item.value;      break;
+                        case  6: gs.unit            = item.value;      break;
+                        case  7: gs.reportSize      = item.unsigned(); break;
+                        case  8: gs.reportID        = item.unsigned(); break;
+                        case  9: gs.reportCount     = item.unsigned(); break;
+                        case 10: ss.push(gs.clone());                  break;
+                        case 11: gs = ss.pop();                        break;
+                        default: throw new IllegalArgumentException("Unsupported global tag in " + item);
+                    }
+                    break;
+
+                case LOCAL: {
+                    int usage = item.length > 2 ? item.value : gs.usagePage << 16 | item.unsigned();
+
+                    switch (item.tag) {
+                        case  0: if (repeat) ls.usage.add(usage);                else ls.usage.set(usage);                break;
+                        case  3: if (repeat) ls.designator.add(item.unsigned()); else ls.designator.set(item.unsigned()); break;
+                        case  7: if (repeat) ls.string.add(item.unsigned());     else ls.string.set(item.unsigned());     break;
+
+                        case  1: ls.usage.min       = usage;           break;
+                        case  2: ls.usage.max       = usage;           break;
+                        case  4: ls.designator.min  = item.unsigned(); break;
+                        case  5: ls.designator.max  = item.unsigned(); break;
+                        case  8: ls.string.min      = item.unsigned(); break;
+                        case  9: ls.string.max      = item.unsigned(); break;
+
+                        case 10: // Delimiter
+                            ls.delimiter(item);
+                            break;
+
+                        default:
+                            throw new IllegalArgumentException("Unsupported local tag in " + item);
+                    }
+                    break;
+                }
+
+                case RESERVED:
+                    throw new IllegalArgumentException(item + " not supported");
+            }
+
+            lastTag = item.tag;
+        }
+
+        private Map<Integer, Report> reports() {
+            Map<Integer, Report> reports = new TreeMap<Integer, Report>();
+
+            for (Map.Entry<Integer, List<Control>> entry : controls.entrySet()) {
+                reports.put(entry.getKey(), new Report(entry.getKey(), entry.getValue()));
+            }
+
+            return Collections.unmodifiableMap(reports);
+        }
+    }
+
+    private static class LocalState {
+        private static final LocalState EMPTY = new LocalState();
+
+        public List<Range> usages = new ArrayList<Range>();
+        public Range   designator = new Range();
+        public Range       string = new Range();
+
+        private Range usage = new Range();
+
+        private LocalState() {
+        }
+
+        private boolean isEmpty() {
+            return usages.isEmpty() && usage.isEmpty() && designator.isEmpty() && string.isEmpty();
+        }
+
+        private LocalState freeze() {
+            if (isEmpty()) {
+                return EMPTY;
+            }
+
+            LocalState ls = new LocalState();
+
+            for (Range range : usages) {
+                ls.usages.add(range.copy());
+            }
+
+            ls.usage      = usage.copy();
+            ls.designator = designator.copy();
+            ls.string     = string.copy();
+
+            return ls;
+        }
+
+        private void reset() {
+            usages.clear();
+            usage.reset();
+            designator.reset();
+            string.reset();
+        }
+
+        private void delimiter(Item item) {
+            if (item.value != 0 && item.value != 1) {
+                throw new IllegalArgumentException("Unsupported value in " + item);
+            }
+
+            if (item.value == 1) {
+                if (!usage.isEmpty()) {
+                    throw new IllegalArgumentException(item + " after usage items not allowed");
+                }
+
+                usages.add(usage);
+            }
+            else {
+                usage = new Range();
+            }
+        }
+
+        private int[] usagesForIndex(int index) {
+            if (usages.isEmpty()) {
+                Integer usage = this.usage.forIndex(index);
+
+                return usage == null ? new int[0] : new int[] { usage };
+            }
+            else {
+                int[] usage = new int[usages.size()];
+
+                for (int i = 0; i < usage.length; ++i) {
+                    usage[i] = usages.get(i).forIndex(index);
+                }
+
+                return usage;
+            }
+        }
+
+        @Override public String toString() {
+            return String.format("[LocalState: usages=%s designator=%s string=%s]",
+                                 usages.isEmpty() ? Arrays.asList(usage) : usages, designator, string);
+        }
+    }
+
+    public static class MainItem {
+        public final Collection parent;
+        public final int usagePage;
+        public final int logicalMinimum;
+        public final int logicalMaximum;
+        public final int physicalMinimum;
+        public final int physicalMaximum;
+        public final int unit;
+        public final int unitExponent;
+        public final int reportID;
+        public final int reportSize;
+        public final int reportCount;
+
+        private MainItem(Collection parent, GlobalState gs) {
+            this.parent     = parent;
+            usagePage       = gs.usagePage;
+            logicalMinimum  = gs.logicalMinimum;
+            logicalMaximum  = gs.logicalMaximum;
+            physicalMinimum = gs.physicalMinimum;
+            physicalMaximum = gs.physicalMaximum;
+            unit            = gs.unit;
+            unitExponent    = gs.unitExponent;
+            reportID        = gs.reportID;
+            reportSize      = gs.reportSize;
+            reportCount     = gs.reportCount;
+        }
+
+        @Override public String toString() {
+            return String.format("[MainItem: parent=%s usagePage=%04x logicalMinimum=%d logicalMaximum=%d physicalMinimum=%d physicalMaximum=%d " +
+                                 "unit=%08x unitExponent=%d reportID=%d reportSize=%d reportCount=%d]",
+                                 parent == null ? "[]" : parent.toShortString(),
+                                 usagePage, logicalMinimum, logicalMaximum, physicalMinimum, physicalMaximum,
+                                 unit, unitExponent, reportID, reportSize, reportCount);
+        }
+    }
+
+    private static class Range {
+        public int[]      values;
+        public int         count;
+        public Integer       min;
+        public Integer       max;
+
+        private Range() {
+        }
+
+        private boolean isEmpty() {
+            return count == 0 && min == null && max == null;
+        }
+
+        private Range copy() {
+            Range range = new Range();
+
+            range.values = count == 0 ? null : Arrays.copyOf(values, count);
+            range.count  = count;
+            range.min    = min;
+            range.max    = max;
+
+            return range;
+        }
+
+        private void reset() {
+            count = 0;
+            min   = null;
+            max   = null;
+        }
+
+        private void add(int value) {
+            if (values == null || count == values.length) {
+                values = values == null ? new int[4] : Arrays.copyOf(values, count * 2);
+            }
+
+            values[count++] = value;
+        }
+
+        private void set(int value) {
+            count = 0;
+            add(value);
+        }
+
+        private int[] list() {
+            return count == 0 ? new int[0] : Arrays.copyOf(values, count);
+        }
+
+        // Controls beyond the last usage reuse it, for lists and Usage Minimum/Maximum ranges alike
+        public Integer forIndex(int index) {
+            if (count != 0) {
+                return values[Math.min(index, count - 1)];
+            }
+            else if (min != null) {
+                return max == null ? min + index : (int) Math.min((long) min + index, max);
+            }
+            else {
+                return null;
+            }
+        }
+
+        @Override public String toString() {
+            return String.format("[Range: values=%s min=%08x max=%08x]", count == 0 ? null : toHexString(Arrays.copyOf(values, count)), min, max);
+        }
+    }
+
+    public static class Report {
+        public final int reportID;
+        public final Set<Control.Type> types;
+        public final List<Control> controls;
+
+        private Report(int id, List<Control> controls) {
+            EnumSet<Control.Type> types = EnumSet.noneOf(Control.Type.class);
+
+            for (Control control : controls) {
+                types.add(control.type);
+            }
+
+            this.reportID = id;
+            this.types    = Collections.unmodifiableSet(types);
+            this.controls = Collections.unmodifiableList(new ArrayList<Control>(controls));
+        }
+    }
+
+    public static class Collection
+        extends MainItem {
+        public static final int PHYSICAL       = 0;
+        public static final int APPLICATION    = 1;
+        public static final int LOGICAL        = 2;
+        public static final int REPORT         = 3;
+        public static final int NAMED_ARRAY    = 4;
+        public static final int USAGE_SWITCH   = 5;
+        public static final int USAGE_MODIFIER = 6;
+
+        public final int id;
+        public final int type;
+        public final List<Integer> usages;
+        public final Integer designator;
+        public final Integer string;
+
+        private Collection(int id, Collection parent, GlobalState gs, LocalState ls, int type) {
+            super(parent, gs);
+
+            List<Integer> usages = new ArrayList<Integer>();
+
+            for (int usage : ls.usagesForIndex(0)) {
+                usages.add(usage);
+            }
+
+            this.id         = id;
+            this.type       = type;
+            this.usages     = Collections.unmodifiableList(usages);
+            this.designator = ls.designator.forIndex(0);
+            this.string     = ls.string.forIndex(0);
+        }
+
+        public boolean hasUsage(int usage) {
+            for (int i = 0; i < usages.size(); ++i) {
+                if (usages.get(i) == usage) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        public String toShortString() {
+            return String.format("[Collection #%d]", id);
+        }
+
+        @Override public String toString() {
+            int[] values = new int[usages.size()];
+
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = usages.get(i);
+            }
+
+            return String.format("[Collection #%d type=%s usages=%s designator=%s string=%s super=%s]",
+                                 id, type, toHexString(values), designator, string, super.toString());
+        }
+    }
+
+    public static class Control
+        extends MainItem {
+        public enum Type { INPUT, OUTPUT, FEATURE };
+        public enum Flag {
+            DATA,             CONSTANT,
+            ARRAY,            VARIABLE,
+            ABSOLUTE,         RELATIVE,
+            NO_WRAP,          WRAP,
+            LINEAR,           NONLINEAR,
+            PREFERRED_STATE,  NO_PREFERED,
+            NO_NULL_POSITION, NULL_STATE,
+            NONVOLATILE,      VOLATILE,
+            BIT_FIELD,        BUFFERED_BYTES,
+        };
+
+        public final Type type;
+        public final Set<Flag> flags;
+
+        private final LocalState ls;
+
+        private Control(Collection parent, GlobalState gs, LocalState ls, Type type, int flags) {
+            super(parent, gs);
+            this.type = type;
+            this.ls   = ls;
+            this.flags = Collections.unmodifiableSet(EnumSet.of((flags & 0x001) == 0 ? Flag.DATA             : Flag.CONSTANT,
+                                    (flags & 0x002) == 0 ? Flag.ARRAY            : Flag.VARIABLE,
+                                    (flags & 0x004) == 0 ? Flag.ABSOLUTE         : Flag.RELATIVE,
+                                    (flags & 0x008) == 0 ? Flag.NO_WRAP          : Flag.WRAP,
+                                    (flags & 0x010) == 0 ? Flag.LINEAR           : Flag.NONLINEAR,
+                                    (flags & 0x020) == 0 ? Flag.PREFERRED_STATE  : Flag.NO_PREFERED,
+                                    (flags & 0x040) == 0 ? Flag.NO_NULL_POSITION : Flag.NULL_STATE,
+                                    (flags & 0x080) == 0 ? Flag.NONVOLATILE      : Flag.VOLATILE,
+                                    (flags & 0x100) == 0 ? Flag.BIT_FIELD        : Flag.BUFFERED_BYTES));
+        }
+
+        @Override public String toString() {
+            return String.format("[Control: type=%s flags=%s ls=%s super=%s]", type, flags, ls, super.toString());
+        }
+    }
+
+    public static void main(String[] args)
+        throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: " + ReportDescriptor.class.getSimpleName() + " <report-descriptor-as-hex>");
+            System.err.println("Example arguments:");
+            System.err.println("  Barcode scanner: 058C0902A1010912A1028502150026FF00750895010501093B81029503058C09FB09FC09FD8102953809FE8202020666FF9502090009008102058C25017501950809FF8102C00914A10285041500250175019508095F0960098509869186C006FFFF0901A10285F0150026FF007508953F0902820202953F0903920202C0C0");
+            System.err.println("   PS3 controller: 05010904A101A102850175089501150026FF00810375019513150025013500450105091901291381027501950D0600FF8103150026FF0005010901A10075089504350046FF0009300931093209358102C0050175089527090181027508953009019102750895300901B102C0A1028502750895300901B102C0A10285EE750895300901B102C0A10285EF750895300901B102C0C0");
+            System.err.println("    Media control: 050C0901A101050C150025017501950709B509B609B709CD09E209E909EA810295018101C0");
+            System.err.println("         Keyboard: 05010906A101050719E029E71500250175019508810295017508810195057501050819012905910295017503910195067508150025650507190029658100C0");
+            System.err.println("            Mouse: 05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0");
+
+            System.exit(64);
+        }
+
+        byte[] raw = fromHexString(args[0]);
+
+        // Dump descriptor tag items
+        System.out.println("Descriptor:");
+        InputStream is = new ByteArrayInputStream(raw);
+        for (Item item = Item.read(is); item != null; item = Item.read(is)) {
+            System.out.println(item);
+        }
+
+        // Evaluate and dump all reports
+        ReportDescriptor hrd = new ReportDescriptor(raw);
+
+        System.out.println();
+        System.out.println("Usages associated with collection that contain INPUT controls:");
+        for (int usage : hrd.usageSet(Control.Type.INPUT)) {
+            System.out.println(String.format("  %08x", usage));
+        }
+        
+        for (Report report : hrd.reports()) {
+            for (Control.Type type : report.types) {
+                System.out.println();
+                System.out.println(String.format("%s report #%d", type, report.reportID));
+                hrd.evaluate(report.reportID, type, new Evaluator() {
+                        @Override public boolean collection(Collection c) {
+                            System.out.println(c);
+                            return true;
+                        }
+
+                        @Override public boolean control(Control c) {
+                            System.out.println(c);
+                            return true;
+                        }
+
+                        @Override public void constant(Control c, int offset) {
+                            System.out.println(String.format("Constant @%d:%d", offset, c.reportSize));
+                        }
+
+                        @Override public void array(Control c, int usageMinimum, int usageMaximum, int offset) {
+                            System.out.println(String.format("Array %08x-%08x @%d:%d", usageMinimum, usageMaximum, offset, c.reportSize));
+                        }
+
+                        @Override public void array(Control c, int[] usages, int offset) {
+                            System.out.println(String.format("Array %s @%d:%d", toHexString(usages), offset, c.reportSize));
+                        }
+
+                        @Override public void variable(Control c, int[] usages, int offset) {
+                            System.out.println(String.format("Data %s @%d:%d", toHexString(usages), offset, c.reportSize));
+                        }
+                    });
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Bounded LRU cache of parsed descriptors, keyed by their bytes. A hit is a ConcurrentHashMap lookup plus a stamp
+// of the entry's last use, so readers never wait for each other. Inserts take a lock and evict the entry with the
+// oldest stamp by scanning them all, which is cheap next to the parse that a miss costs anyway.
+public final class ReportDescriptorCache {
+    private final int maximumSize;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final AtomicLong clock = new AtomicLong();
+
+    private final AtomicLong hits      = new AtomicLong();
+    private final AtomicLong misses    = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ReportDescriptorCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+
+        this.maximumSize = maximumSize;
+    }
+
+    public ReportDescriptor get(byte[] bytes)
+        throws IOException {
+        Key key = new Key(bytes);
+        Entry entry = entries.get(key);
+
+        if (entry != null) {
+            entry.used = clock.incrementAndGet();
+            hits.incrementAndGet();
+            return entry.descriptor;
+        }
+
+        misses.incrementAndGet();
+
+        // Parse outside the lock; if another thread won the race, share its instance
+        ReportDescriptor parsed = new ReportDescriptor(bytes);
+
+        key = new Key(bytes.clone(), key.hash);
+
+        synchronized (entries) {
+            entry = entries.get(key);
+
+            if (entry == null) {
+                if (entries.size() >= maximumSize) {
+                    evict();
+                }
+
+                entry = new Entry(parsed);
+                entries.put(key, entry);
+            }
+
+            entry.used = clock.incrementAndGet();
+        }
+
+        return entry.descriptor;
+    }
+
+    public int maximumSize() {
+        return maximumSize;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    @Override public String toString() {
+        return String.format("[ReportDescriptorCache: size=%d maximumSize=%d hits=%d misses=%d evictions=%d]",
+                             size(), maximumSize, hits(), misses(), evictions());
+    }
+
+    // Removes the least recently used entry; callers hold the entries lock
+    private void evict() {
+        Map.Entry<Key, Entry> eldest = null;
+
+        for (Map.Entry<Key, Entry> candidate : entries.entrySet()) {
+            if (eldest == null || candidate.getValue().used < eldest.getValue().used) {
+                eldest = candidate;
+            }
+        }
+
+        if (eldest != null && entries.remove(eldest.getKey(), eldest.getValue())) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static final class Entry {
+        private final ReportDescriptor descriptor;
+
+        private volatile long used;
+
+        private Entry(ReportDescriptor descriptor) {
+            this.descriptor = descriptor;
+        }
+    }
+
+    private static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        private Key(byte[] bytes) {
+            this(bytes, hash(bytes));
+        }
+
+        private Key(byte[] bytes, int hash) {
+            this.bytes = bytes;
+            this.hash  = hash;
+        }
+
+        private static int hash(byte[] bytes) {
+            long h = 0xcbf29ce484222325L;
+
+            for (byte b : bytes) {
+                h = (h ^ (b & 0xff)) * 0x100000001b3L;
+            }
+
+            return (int) (h ^ h >>> 32);
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).hash == hash && Arrays.equals(((Key) other).bytes, bytes);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+public final class ReportField {
+    private final int reportID;
+    private final Control.Type type;
+    private final int offset;
+    private final int size;
+    private final boolean signed;
+    private final int usage;
+    private final Control control;
+    private final double scale;
+    private final double physicalOffset;
+    private final HidUnit unit;
+
+    ReportField(int reportID, Control.Type type, int offset, int size, boolean signed, int usage, Control control,
+                double scale, double physicalOffset, HidUnit unit) {
+        this.reportID       = reportID;
+        this.type           = type;
+        this.offset         = offset;
+        this.size           = size;
+        this.signed         = signed;
+        this.usage          = usage;
+        this.control        = control;
+        this.scale          = scale;
+        this.physicalOffset = physicalOffset;
+        this.unit           = unit;
+    }
+
+    public int reportID() {
+        return reportID;
+    }
+
+    public Control.Type type() {
+        return type;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public int usage() {
+        return usage;
+    }
+
+    public int logicalMinimum() {
+        return control.logicalMinimum;
+    }
+
+    public int logicalMaximum() {
+        return control.logicalMaximum;
+    }
+
+    public int physicalMinimum() {
+        return control.physicalMinimum;
+    }
+
+    public int physicalMaximum() {
+        return control.physicalMaximum;
+    }
+
+    public HidUnit unit() {
+        return unit;
+    }
+
+    public double scale() {
+        return scale;
+    }
+
+    public double physicalOffset() {
+        return physicalOffset;
+    }
+
+    // value is a raw int as returned by read(); unsigned 32-bit fields are widened before scaling
+    public double physical(int value) {
+        return (size >= 32 && !signed ? value & 0xffffffffL : value) * scale + physicalOffset;
+    }
+
+    public Control control() {
+        return control;
+    }
+
+    public int read(byte[] buffer, int position) {
+        return BitField.getInt(buffer, position, offset, size, signed);
+    }
+
+    public long readLong(byte[] buffer, int position) {
+        return BitField.getLong(buffer, position, offset, size, signed);
+    }
+
+    public int read(ByteBuffer buffer, int position) {
+        return BitField.getInt(buffer, position, offset, size, signed);
+    }
+
+    public long readLong(ByteBuffer buffer, int position) {
+        return BitField.getLong(buffer, position, offset, size, signed);
+    }
+
+    public double readPhysical(byte[] buffer, int position) {
+        return readLong(buffer, position) * scale + physicalOffset;
+    }
+
+    public double readPhysical(ByteBuffer buffer, int position) {
+        return readLong(buffer, position) * scale + physicalOffset;
+    }
+
+    @Override public String toString() {
+        return String.format("[ReportField: usage=%08x reportID=%d type=%s @%d:%d signed=%b]",
+                             usage, reportID, type, offset, size, signed);
+    }
+}
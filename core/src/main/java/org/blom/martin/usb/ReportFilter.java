@@ -0,0 +1,63 @@
+package org.blom.martin.usb;
+
+import org.blom.martin.usb.ReportDescriptor.Collection;
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+// Evaluator that accepts everything and ignores fields; override collection() and/or control() and
+// pass it to ReportDescriptor.compile() to build a pruned layout
+public class ReportFilter
+    implements ReportDescriptor.Evaluator {
+    public static final ReportFilter ALL = new ReportFilter();
+
+    // Controls that carry data and have one usage per field
+    public static final ReportFilter VARIABLES = new ReportFilter() {
+        @Override public boolean control(Control control) {
+            return !control.flags.contains(Control.Flag.CONSTANT) && control.flags.contains(Control.Flag.VARIABLE);
+        }
+    };
+
+    // Controls inside a collection with the given usage (page << 16 | ID), at any depth. Matching
+    // controls rather than collections keeps the enclosing collections, which are evaluated first.
+    public static ReportFilter collection(final int usage) {
+        return new ReportFilter() {
+            @Override public boolean control(Control control) {
+                for (Collection c = control.parent; c != null; c = c.parent) {
+                    if (c.hasUsage(usage)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public static ReportFilter and(final ReportDescriptor.Evaluator first, final ReportDescriptor.Evaluator second) {
+        return new ReportFilter() {
+            @Override public boolean collection(Collection collection) {
+                return first.collection(collection) && second.collection(collection);
+            }
+
+            @Override public boolean control(Control control) {
+                return first.control(control) && second.control(control);
+            }
+        };
+    }
+
+    @Override public boolean collection(Collection collection) {
+        return true;
+    }
+
+    @Override public boolean control(Control control) {
+        return true;
+    }
+
+    @Override public void constant(Control control, int offset) {
+    }
+
+    @Override public void array(Control control, int usageMinimum, int usageMaximum, int offset) {
+    }
+
+    @Override public void variable(Control control, int[] usages, int offset) {
+    }
+}
@@ -0,0 +1,639 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+public final class ReportLayout
+    implements ReportDecoder {
+    // Fixed-point physical values and offsets are Q47.16, scales are Q31.32
+    public static final int FIXED_SHIFT = 16;
+    public static final int SCALE_SHIFT = 32;
+
+    // Bound on |raw * scale| and |offset| for which the integer toFixed() path cannot overflow
+    private static final double FIXED_PRODUCT_LIMIT = 0x1p30;
+    private static final double FIXED_OFFSET_LIMIT  = 0x1p46;
+
+    private final int reportID;
+    private final Control.Type type;
+    private final int bitLength;
+    private final boolean numbered;
+
+    private final int[]     offsets;
+    private final int[]     sizes;
+    private final boolean[] signed;
+    private final boolean[] arrays;
+    private final int[]     usages;
+    private final int[]     usageMaxima;
+    private final int[][]   usageLists;
+    private final Control[] controls;
+    private final ReportField[] fields;
+
+    // physical = raw * scale + offset, precomputed from the logical/physical ranges and unit exponent
+    private final double[]  physicalScales;
+    private final double[]  physicalOffsets;
+    private final long[]    fixedScales;
+    private final long[]    fixedOffsets;
+    private final boolean[] fixedExact;
+    private final long[]    rawMasks;
+    private final HidUnit[] units;
+
+    // Runs of byte-aligned fields from one control, as byte offsets and lengths
+    private final int[] spanFields;
+    private final int[] spanOffsets;
+    private final int[] spanLengths;
+
+    private ReportLayout(int reportID, Control.Type type, int bitLength, Builder builder) {
+        int count = builder.count;
+
+        this.reportID    = reportID;
+        this.type        = type;
+        this.bitLength   = bitLength;
+        this.numbered    = builder.numbered;
+        this.offsets     = Arrays.copyOf(builder.offsets,     count);
+        this.sizes       = Arrays.copyOf(builder.sizes,       count);
+        this.signed      = Arrays.copyOf(builder.signed,      count);
+        this.arrays      = Arrays.copyOf(builder.arrays,      count);
+        this.usages      = Arrays.copyOf(builder.usages,      count);
+        this.usageMaxima = Arrays.copyOf(builder.usageMaxima, count);
+        this.usageLists  = Arrays.copyOf(builder.usageLists,  count);
+        this.controls    = Arrays.copyOf(builder.controls,    count);
+        this.fields      = new ReportField[count];
+
+        this.physicalScales  = new double[count];
+        this.physicalOffsets = new double[count];
+        this.fixedScales     = new long[count];
+        this.fixedOffsets    = new long[count];
+        this.fixedExact      = new boolean[count];
+        this.rawMasks        = new long[count];
+        this.units           = new HidUnit[count];
+
+        for (int i = 0; i < count; ++i) {
+            Control control = controls[i];
+            double  logical = (double) control.logicalMaximum - control.logicalMinimum;
+            double  pmin    = control.physicalMinimum;
+            double  pmax    = control.physicalMaximum;
+            double  power   = Math.pow(10, HidUnit.exponent(control.unitExponent));
+
+            // Physical Minimum and Maximum both zero means they are undefined, so physical equals logical
+            if (pmin == 0 && pmax == 0) {
+                pmin = control.logicalMinimum;
+                pmax = control.logicalMaximum;
+            }
+
+            double scale  = logical != 0 ? (pmax - pmin) / logical * power : power;
+            double offset = pmin * power - control.logicalMinimum * scale;
+
+            // Largest raw magnitude an int column can hold for the field; unsigned 32-bit values are
+            // stored as negative ints and widened through rawMasks
+            int    bits   = Math.min(sizes[i], 32);
+            double raw    = signed[i] ? Math.pow(2, bits - 1) : Math.pow(2, bits) - 1;
+
+            physicalScales[i]  = scale;
+            physicalOffsets[i] = offset;
+            fixedExact[i]      = Math.abs(scale) * raw < FIXED_PRODUCT_LIMIT && Math.abs(offset) < FIXED_OFFSET_LIMIT;
+            fixedScales[i]     = fixedExact[i] ? Math.round(scale  * (1L << SCALE_SHIFT)) : 0;
+            fixedOffsets[i]    = fixedExact[i] ? Math.round(offset * (1L << FIXED_SHIFT)) : 0;
+            rawMasks[i]        = bits == 32 && !signed[i] ? 0xffffffffL : -1L;
+            units[i]           = control.unit == 0 ? HidUnit.NONE : new HidUnit(control.unit);
+
+            fields[i] = new ReportField(reportID, type, offsets[i], sizes[i], signed[i], usages[i], control, scale, offset, units[i]);
+        }
+
+        int[] first  = new int[count];
+        int[] start  = new int[count];
+        int[] length = new int[count];
+        int   spans  = 0;
+
+        // Spans are BUFFERED_BYTES controls and vendor blobs, i.e. multi-byte runs of one repeated usage
+        for (int i = 0, last = -1; i <= count; ++i) {
+            boolean bytes = i < count && !arrays[i] && offsets[i] % 8 == 0 && sizes[i] % 8 == 0;
+
+            if (bytes && spans > 0 && last == i - 1 && controls[first[spans - 1]] == controls[i] &&
+                (start[spans - 1] + length[spans - 1]) * 8 == offsets[i] &&
+                (controls[i].flags.contains(Control.Flag.BUFFERED_BYTES) || usages[first[spans - 1]] == usages[i])) {
+                length[spans - 1] += sizes[i] / 8;
+                last = i;
+                continue;
+            }
+
+            // Close the previous span, dropping single fields that are just ordinary byte values
+            if (spans > 0 && last == first[spans - 1] && !controls[last].flags.contains(Control.Flag.BUFFERED_BYTES)) {
+                --spans;
+            }
+
+            if (bytes) {
+                first[spans]  = i;
+                start[spans]  = offsets[i] / 8;
+                length[spans] = sizes[i] / 8;
+                last          = i;
+                ++spans;
+            }
+        }
+
+        this.spanFields  = Arrays.copyOf(first,  spans);
+        this.spanOffsets = Arrays.copyOf(start,  spans);
+        this.spanLengths = Arrays.copyOf(length, spans);
+    }
+
+    public int reportID() {
+        return reportID;
+    }
+
+    public Control.Type type() {
+        return type;
+    }
+
+    public int bitLength() {
+        return bitLength;
+    }
+
+    // Whether reports start with a report ID byte, as they do whenever the descriptor declares any report ID.
+    // Field offsets never include that byte.
+    public boolean isNumbered() {
+        return numbered;
+    }
+
+    public int byteLength() {
+        return (bitLength + 7) / 8;
+    }
+
+    public int fieldCount() {
+        return offsets.length;
+    }
+
+    public int offset(int field) {
+        return offsets[field];
+    }
+
+    public int size(int field) {
+        return sizes[field];
+    }
+
+    public boolean isSigned(int field) {
+        return signed[field];
+    }
+
+    public boolean isArray(int field) {
+        return arrays[field];
+    }
+
+    public int usage(int field) {
+        return usages[field];
+    }
+
+    public int usageMaximum(int field) {
+        return usageMaxima[field];
+    }
+
+    // The usages of an array field that lists them instead of a Usage Minimum/Maximum range, or null.
+    // usage() and usageMaximum() are then the smallest and largest listed usage.
+    public int[] usageList(int field) {
+        return usageLists[field] == null ? null : usageLists[field].clone();
+    }
+
+    // Returns the usage selected by the value of an array field, or 0 if it selects none
+    public int arrayUsage(int field, int value) {
+        long index = (long) value - controls[field].logicalMinimum;
+        int[] list = usageLists[field];
+
+        if (list != null) {
+            return index >= 0 && index < list.length ? list[(int) index] : 0;
+        }
+        else {
+            return index >= 0 && index <= (long) usageMaxima[field] - usages[field] ? usages[field] + (int) index : 0;
+        }
+    }
+
+    public Control control(int field) {
+        return controls[field];
+    }
+
+    public ReportField field(int field) {
+        return fields[field];
+    }
+
+    public HidUnit unit(int field) {
+        return units[field];
+    }
+
+    public double physicalScale(int field) {
+        return physicalScales[field];
+    }
+
+    public double physicalOffset(int field) {
+        return physicalOffsets[field];
+    }
+
+    // True if toFixed() computes the field exactly in integer arithmetic. This holds when every raw value
+    // times the scale stays below 2^30 in magnitude and the offset below 2^46. Other fields fall back to
+    // rounding the double result, and fixedScale() and fixedOffset() return 0 for them.
+    public boolean isFixedExact(int field) {
+        return fixedExact[field];
+    }
+
+    public long fixedScale(int field) {
+        return fixedScales[field];
+    }
+
+    public long fixedOffset(int field) {
+        return fixedOffsets[field];
+    }
+
+    // value is a raw int as returned by decode(); unsigned 32-bit fields are widened before scaling
+    public double physical(int field, int value) {
+        return (value & rawMasks[field]) * physicalScales[field] + physicalOffsets[field];
+    }
+
+    public int indexOf(int usage) {
+        for (int i = 0; i < usages.length; ++i) {
+            if (usages[i] == usage) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override public int[] decode(byte[] buffer, int position, int[] values) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            values[i] = BitField.getInt(buffer, position, offsets[i], sizes[i], signed[i]);
+        }
+
+        finish(start);
+        return values;
+    }
+
+    public long[] decode(byte[] buffer, int position, long[] values) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            values[i] = BitField.getLong(buffer, position, offsets[i], sizes[i], signed[i]);
+        }
+
+        finish(start);
+        return values;
+    }
+
+    public void decode(byte[] buffer, int position, Sink sink) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            sink.field(i, usages[i], BitField.getLong(buffer, position, offsets[i], sizes[i], signed[i]));
+        }
+
+        finish(start);
+    }
+
+    public int[] decode(ByteBuffer buffer, int position, int[] values) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            values[i] = BitField.getInt(buffer, position, offsets[i], sizes[i], signed[i]);
+        }
+
+        finish(start);
+        return values;
+    }
+
+    public long[] decode(ByteBuffer buffer, int position, long[] values) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            values[i] = BitField.getLong(buffer, position, offsets[i], sizes[i], signed[i]);
+        }
+
+        finish(start);
+        return values;
+    }
+
+    public void decode(ByteBuffer buffer, int position, Sink sink) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            sink.field(i, usages[i], BitField.getLong(buffer, position, offsets[i], sizes[i], signed[i]));
+        }
+
+        finish(start);
+    }
+
+    public void decodeColumn(int field, byte[] buffer, int[] positions, int count, int[] column, int index) {
+        decodeColumn(field, buffer, positions, 0, count, column, index);
+    }
+
+    public void decodeColumn(int field, byte[] buffer, int[] positions, int from, int count, int[] column, int index) {
+        int     offset = offsets[field];
+        int     size   = sizes[field];
+        boolean signed = this.signed[field];
+
+        for (int i = 0; i < count; ++i) {
+            column[index + i] = BitField.getInt(buffer, positions[from + i], offset, size, signed);
+        }
+    }
+
+    public void decodeColumn(int field, ByteBuffer buffer, int[] positions, int count, int[] column, int index) {
+        decodeColumn(field, buffer, positions, 0, count, column, index);
+    }
+
+    public void decodeColumn(int field, ByteBuffer buffer, int[] positions, int from, int count, int[] column, int index) {
+        int     offset = offsets[field];
+        int     size   = sizes[field];
+        boolean signed = this.signed[field];
+
+        for (int i = 0; i < count; ++i) {
+            column[index + i] = BitField.getInt(buffer, positions[from + i], offset, size, signed);
+        }
+    }
+
+    public void decodeColumn(int field, byte[] buffer, int position, int stride, int count, int[] column, int index) {
+        BitField.getInts(buffer, position, stride, count, offsets[field], sizes[field], signed[field], column, index);
+    }
+
+    public void decodeColumn(int field, ByteBuffer buffer, int position, int stride, int count, int[] column, int index) {
+        BitField.getInts(buffer, position, stride, count, offsets[field], sizes[field], signed[field], column, index);
+    }
+
+    public double[] decode(byte[] buffer, int position, double[] values) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            values[i] = BitField.getLong(buffer, position, offsets[i], sizes[i], signed[i]) * physicalScales[i] + physicalOffsets[i];
+        }
+
+        finish(start);
+        return values;
+    }
+
+    public double[] decode(ByteBuffer buffer, int position, double[] values) {
+        long start = start();
+
+        for (int i = 0; i < offsets.length; ++i) {
+            values[i] = BitField.getLong(buffer, position, offsets[i], sizes[i], signed[i]) * physicalScales[i] + physicalOffsets[i];
+        }
+
+        finish(start);
+        return values;
+    }
+
+    // Straight multiply-add loops over a decoded column, which the JIT can unroll and vectorize
+    public void toPhysical(int field, int[] column, int from, int count, double[] physical, int index) {
+        double scale  = physicalScales[field];
+        double offset = physicalOffsets[field];
+        long   mask   = rawMasks[field];
+
+        for (int i = 0; i < count; ++i) {
+            physical[index + i] = (column[from + i] & mask) * scale + offset;
+        }
+    }
+
+    public void toPhysical(int field, int[] column, int from, int count, float[] physical, int index) {
+        float scale  = (float) physicalScales[field];
+        float offset = (float) physicalOffsets[field];
+        long  mask   = rawMasks[field];
+
+        for (int i = 0; i < count; ++i) {
+            physical[index + i] = (column[from + i] & mask) * scale + offset;
+        }
+    }
+
+    // Writes Q47.16 physical values; see isFixedExact(). Results beyond the Q47.16 range saturate.
+    public void toFixed(int field, int[] column, int from, int count, long[] fixed, int index) {
+        long mask = rawMasks[field];
+
+        if (fixedExact[field]) {
+            long scale  = fixedScales[field];
+            long offset = fixedOffsets[field];
+
+            for (int i = 0; i < count; ++i) {
+                fixed[index + i] = ((column[from + i] & mask) * scale >> (SCALE_SHIFT - FIXED_SHIFT)) + offset;
+            }
+        }
+        else {
+            double scale  = physicalScales[field] * (1L << FIXED_SHIFT);
+            double offset = physicalOffsets[field] * (1L << FIXED_SHIFT);
+
+            for (int i = 0; i < count; ++i) {
+                fixed[index + i] = Math.round((column[from + i] & mask) * scale + offset);
+            }
+        }
+    }
+
+    public int spanCount() {
+        return spanFields.length;
+    }
+
+    // Index of the first field in the span
+    public int spanField(int span) {
+        return spanFields[span];
+    }
+
+    // Byte offset of the span, relative to the report position
+    public int spanOffset(int span) {
+        return spanOffsets[span];
+    }
+
+    public int spanLength(int span) {
+        return spanLengths[span];
+    }
+
+    public int spanIndexOf(int usage) {
+        for (int span = 0; span < spanFields.length; ++span) {
+            int field = spanFields[span];
+
+            for (int i = field; i < offsets.length && offsets[i] / 8 < spanOffsets[span] + spanLengths[span]; ++i) {
+                if (usages[i] == usage) {
+                    return span;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    // Returns a view of the span that shares content with buffer
+    public ByteBuffer slice(int span, byte[] buffer, int position) {
+        return ByteBuffer.wrap(buffer, position + spanOffsets[span], spanLengths[span]).slice();
+    }
+
+    public ByteBuffer slice(int span, ByteBuffer buffer, int position) {
+        ByteBuffer view = buffer.duplicate();
+
+        view.limit(position + spanOffsets[span] + spanLengths[span]).position(position + spanOffsets[span]);
+        return view.slice().order(buffer.order());
+    }
+
+    public int copySpan(int span, byte[] buffer, int position, byte[] out, int index) {
+        System.arraycopy(buffer, position + spanOffsets[span], out, index, spanLengths[span]);
+        return spanLengths[span];
+    }
+
+    public int copySpan(int span, ByteBuffer buffer, int position, byte[] out, int index) {
+        ByteBuffer view = buffer.duplicate();
+
+        view.position(position + spanOffsets[span]);
+        view.get(out, index, spanLengths[span]);
+        return spanLengths[span];
+    }
+
+    // Returns System.nanoTime() if the metrics want this decode timed, else 0
+    private static long start() {
+        Metrics metrics = ReportDescriptor.getMetrics();
+
+        return metrics.isEnabled() && metrics.timeDecode() ? System.nanoTime() : 0;
+    }
+
+    private void finish(long start) {
+        Metrics metrics = ReportDescriptor.getMetrics();
+
+        if (metrics.isEnabled()) {
+            metrics.decoded(type, reportID, 1);
+
+            if (start != 0) {
+                metrics.decodeLatency(type, reportID, System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Override public String toString() {
+        return String.format("[ReportLayout: reportID=%d type=%s bitLength=%d fields=%d]",
+                             reportID, type, bitLength, offsets.length);
+    }
+
+    public interface Sink {
+        public void field(int field, int usage, long value);
+    }
+
+    static final class Builder
+        implements ReportDescriptor.Evaluator {
+        private int reportID;
+        private Control.Type type;
+        private boolean numbered;
+        private ReportDescriptor.Evaluator filter;
+        private int[] selected;
+
+        private int       count;
+        private int[]     offsets     = new int[16];
+        private int[]     sizes       = new int[16];
+        private boolean[] signed      = new boolean[16];
+        private boolean[] arrays      = new boolean[16];
+        private int[]     usages      = new int[16];
+        private int[]     usageMaxima = new int[16];
+        private int[][]   usageLists  = new int[16][];
+        private Control[] controls    = new Control[16];
+
+        Builder(int reportID, Control.Type type) {
+            this.reportID = reportID;
+            this.type     = type;
+        }
+
+        Builder numbered(boolean numbered) {
+            this.numbered = numbered;
+            return this;
+        }
+
+        // Only visits collections and controls accepted by filter
+        Builder filter(ReportDescriptor.Evaluator filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        // Only keeps variables with one of the usages, and arrays whose usage range includes one
+        Builder select(int[] usages) {
+            selected = usages.clone();
+            Arrays.sort(selected);
+            return this;
+        }
+
+        int reportID() {
+            return reportID;
+        }
+
+        Control.Type type() {
+            return type;
+        }
+
+        ReportLayout build(int bitLength) {
+            return new ReportLayout(reportID, type, bitLength, this);
+        }
+
+        @Override public boolean collection(ReportDescriptor.Collection collection) {
+            return filter == null || filter.collection(collection);
+        }
+
+        @Override public boolean control(Control control) {
+            return filter == null || filter.control(control);
+        }
+
+        @Override public void constant(Control control, int offset) {
+        }
+
+        @Override public void array(Control control, int usageMinimum, int usageMaximum, int offset) {
+            if (isSelected(usageMinimum, usageMaximum)) {
+                add(control, usageMinimum, usageMaximum, null, offset, true);
+            }
+        }
+
+        @Override public void array(Control control, int[] usages, int offset) {
+            int minimum = usages.length == 0 ? 0 : Integer.MAX_VALUE;
+            int maximum = usages.length == 0 ? 0 : Integer.MIN_VALUE;
+            boolean selected = this.selected == null;
+
+            for (int usage : usages) {
+                minimum  = Math.min(minimum, usage);
+                maximum  = Math.max(maximum, usage);
+                selected = selected || isSelected(usage, usage);
+            }
+
+            if (selected) {
+                add(control, minimum, maximum, usages, offset, true);
+            }
+        }
+
+        @Override public void variable(Control control, int[] usages, int offset) {
+            int usage = usages.length == 0 ? 0 : usages[0];
+
+            if (isSelected(usage, usage)) {
+                add(control, usage, usage, null, offset, false);
+            }
+        }
+
+        private boolean isSelected(int usage, int usageMaximum) {
+            if (selected == null) {
+                return true;
+            }
+
+            int index = Arrays.binarySearch(selected, usage);
+
+            // The insertion point is the first selected usage above the minimum
+            return index >= 0 || -index - 1 != selected.length && selected[-index - 1] <= usageMaximum;
+        }
+
+        private void add(Control control, int usage, int usageMaximum, int[] usageList, int offset, boolean array) {
+            if (count == offsets.length) {
+                int capacity = count * 2;
+
+                offsets     = Arrays.copyOf(offsets,     capacity);
+                sizes       = Arrays.copyOf(sizes,       capacity);
+                signed      = Arrays.copyOf(signed,      capacity);
+                arrays      = Arrays.copyOf(arrays,      capacity);
+                usages      = Arrays.copyOf(usages,      capacity);
+                usageMaxima = Arrays.copyOf(usageMaxima, capacity);
+                usageLists  = Arrays.copyOf(usageLists,  capacity);
+                controls    = Arrays.copyOf(controls,    capacity);
+            }
+
+            offsets[count]     = offset;
+            sizes[count]       = control.reportSize;
+            signed[count]      = control.logicalMinimum < 0;
+            arrays[count]      = array;
+            usages[count]      = usage;
+            usageMaxima[count] = usageMaximum;
+            usageLists[count]  = usageList;
+            controls[count]    = control;
+            ++count;
+        }
+    }
+}
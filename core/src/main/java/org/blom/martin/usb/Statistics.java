@@ -0,0 +1,244 @@
+package org.blom.martin.usb;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+// Lock- and allocation-free Metrics implementation with per-ID counters and log2 latency histograms
+public class Statistics
+    extends Metrics
+    implements StatisticsMBean {
+    private static final int TYPES = Control.Type.values().length;
+
+    // One counter per type and report ID, plus one per type shared by all IDs outside 0..255
+    private static final int SLOTS = 257;
+
+    private final AtomicLongArray decoded   = new AtomicLongArray(TYPES * SLOTS);
+    private final AtomicLongArray unknown   = new AtomicLongArray(TYPES * SLOTS);
+    private final AtomicLongArray malformed = new AtomicLongArray(TYPES * SLOTS);
+
+    // Bucket n counts durations in [2^n, 2^(n+1)) nanoseconds
+    private final AtomicLongArray parseHistogram  = new AtomicLongArray(64);
+    private final AtomicLongArray batchHistogram  = new AtomicLongArray(64);
+    private final AtomicLongArray decodeHistogram = new AtomicLongArray(64);
+
+    // One in sampling single-report decodes is timed
+    private final int sampling;
+
+    private final AtomicLong descriptors     = new AtomicLong();
+    private final AtomicLong descriptorNanos = new AtomicLong();
+    private final AtomicLong batches         = new AtomicLong();
+    private final AtomicLong batchNanos      = new AtomicLong();
+
+    public Statistics() {
+        this(64);
+    }
+
+    public Statistics(int sampling) {
+        if (sampling < 1) {
+            throw new IllegalArgumentException("Invalid sampling: " + sampling);
+        }
+
+        this.sampling = sampling;
+    }
+
+    @Override public void parsed(int bytes, long nanos) {
+        descriptors.incrementAndGet();
+        descriptorNanos.addAndGet(nanos);
+        parseHistogram.incrementAndGet(bucket(nanos));
+    }
+
+    @Override public void decoded(Control.Type type, int reportID, int reports) {
+        decoded.addAndGet(slot(type, reportID), reports);
+    }
+
+    @Override public boolean timeDecode() {
+        return sampling == 1 || ThreadLocalRandom.current().nextInt(sampling) == 0;
+    }
+
+    @Override public void decodeLatency(Control.Type type, int reportID, long nanos) {
+        decodeHistogram.incrementAndGet(bucket(nanos));
+    }
+
+    @Override public void batch(Control.Type type, int reports, int bytes, long nanos) {
+        batches.incrementAndGet();
+        batchNanos.addAndGet(nanos);
+        batchHistogram.incrementAndGet(bucket(nanos));
+    }
+
+    @Override public void unknownReport(Control.Type type, int reportID) {
+        unknown.incrementAndGet(slot(type, reportID));
+    }
+
+    @Override public void malformedReport(Control.Type type, int reportID, int available) {
+        malformed.incrementAndGet(slot(type, reportID));
+    }
+
+    // Report IDs outside 0..255 all return the same per-type counter
+    public long decoded(Control.Type type, int reportID) {
+        return decoded.get(slot(type, reportID));
+    }
+
+    public long unknown(Control.Type type, int reportID) {
+        return unknown.get(slot(type, reportID));
+    }
+
+    public long malformed(Control.Type type, int reportID) {
+        return malformed.get(slot(type, reportID));
+    }
+
+    public long[] parseHistogram() {
+        return snapshot(parseHistogram);
+    }
+
+    public long[] batchHistogram() {
+        return snapshot(batchHistogram);
+    }
+
+    // Latencies of the sampled single-report decodes
+    public long[] decodeHistogram() {
+        return snapshot(decodeHistogram);
+    }
+
+    public int sampling() {
+        return sampling;
+    }
+
+    // Returns the upper bound of the histogram bucket holding the given quantile, or 0 if it is empty
+    public static long percentile(long[] histogram, double quantile) {
+        long total = 0;
+
+        for (long count : histogram) {
+            total += count;
+        }
+
+        long rank = (long) Math.ceil(total * quantile);
+
+        for (int i = 0; i < histogram.length; ++i) {
+            rank -= histogram[i];
+
+            if (rank <= 0 && histogram[i] != 0) {
+                return i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+
+        return 0;
+    }
+
+    public ObjectName register(String name)
+        throws JMException {
+        ObjectName objectName = new ObjectName(name);
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void reset() {
+        for (int i = 0; i < decoded.length(); ++i) {
+            decoded.set(i, 0);
+            unknown.set(i, 0);
+            malformed.set(i, 0);
+        }
+
+        for (int i = 0; i < 64; ++i) {
+            parseHistogram.set(i, 0);
+            batchHistogram.set(i, 0);
+            decodeHistogram.set(i, 0);
+        }
+
+        descriptors.set(0);
+        descriptorNanos.set(0);
+        batches.set(0);
+        batchNanos.set(0);
+    }
+
+    @Override public long getDescriptorsParsed() {
+        return descriptors.get();
+    }
+
+    @Override public long getDescriptorNanos() {
+        return descriptorNanos.get();
+    }
+
+    @Override public long getReportsDecoded() {
+        return sum(decoded);
+    }
+
+    @Override public long getBatchesDecoded() {
+        return batches.get();
+    }
+
+    @Override public long getBatchNanos() {
+        return batchNanos.get();
+    }
+
+    @Override public long getUnknownReports() {
+        return sum(unknown);
+    }
+
+    @Override public long getMalformedReports() {
+        return sum(malformed);
+    }
+
+    @Override public long getParseNanosP50() {
+        return percentile(parseHistogram(), 0.50);
+    }
+
+    @Override public long getParseNanosP99() {
+        return percentile(parseHistogram(), 0.99);
+    }
+
+    @Override public long getBatchNanosP50() {
+        return percentile(batchHistogram(), 0.50);
+    }
+
+    @Override public long getBatchNanosP99() {
+        return percentile(batchHistogram(), 0.99);
+    }
+
+    @Override public long getDecodeNanosP50() {
+        return percentile(decodeHistogram(), 0.50);
+    }
+
+    @Override public long getDecodeNanosP99() {
+        return percentile(decodeHistogram(), 0.99);
+    }
+
+    @Override public String toString() {
+        return String.format("[Statistics: descriptors=%d decoded=%d batches=%d unknown=%d malformed=%d " +
+                             "parseP99=%dns batchP99=%dns decodeP99=%dns]",
+                             getDescriptorsParsed(), getReportsDecoded(), getBatchesDecoded(), getUnknownReports(),
+                             getMalformedReports(), getParseNanosP99(), getBatchNanosP99(), getDecodeNanosP99());
+    }
+
+    private static int slot(Control.Type type, int reportID) {
+        return type.ordinal() * SLOTS + ((reportID & ~0xff) == 0 ? reportID : 256);
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    private static long[] snapshot(AtomicLongArray array) {
+        long[] res = new long[array.length()];
+
+        for (int i = 0; i < res.length; ++i) {
+            res[i] = array.get(i);
+        }
+
+        return res;
+    }
+
+    private static long sum(AtomicLongArray array) {
+        long sum = 0;
+
+        for (int i = 0; i < array.length(); ++i) {
+            sum += array.get(i);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,17 @@
+package org.blom.martin.usb;
+
+public interface StatisticsMBean {
+    public long getDescriptorsParsed();
+    public long getDescriptorNanos();
+    public long getReportsDecoded();
+    public long getBatchesDecoded();
+    public long getBatchNanos();
+    public long getUnknownReports();
+    public long getMalformedReports();
+    public long getParseNanosP50();
+    public long getParseNanosP99();
+    public long getBatchNanosP50();
+    public long getBatchNanosP99();
+    public long getDecodeNanosP50();
+    public long getDecodeNanosP99();
+}
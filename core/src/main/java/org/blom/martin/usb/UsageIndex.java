@@ -0,0 +1,47 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+
+final class UsageIndex {
+    private final int[] keys;
+    private final ReportField[] values;
+    private final int mask;
+
+    UsageIndex(List<ReportField> fields) {
+        int capacity = Integer.highestOneBit(Math.max(fields.size(), 1) * 2 + 1) * 2;
+
+        keys   = new int[capacity];
+        values = new ReportField[capacity];
+        mask   = capacity - 1;
+
+        for (ReportField field : fields) {
+            int slot = slot(field.usage());
+
+            while (values[slot] != null && keys[slot] != field.usage()) {
+                slot = (slot + 1) & mask;
+            }
+
+            // First field with a given usage wins
+            if (values[slot] == null) {
+                keys[slot]   = field.usage();
+                values[slot] = field;
+            }
+        }
+    }
+
+    ReportField get(int usage) {
+        for (int slot = slot(usage); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == usage) {
+                return values[slot];
+            }
+        }
+
+        return null;
+    }
+
+    private int slot(int usage) {
+        int h = usage * 0x9e3779b9;
+
+        return (h ^ h >>> 16) & mask;
+    }
+}
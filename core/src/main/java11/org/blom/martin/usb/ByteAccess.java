@@ -0,0 +1,39 @@
+package org.blom.martin.usb;
+
+import java.lang.invoke.*;
+import java.nio.*;
+
+// Java 11+ version of ByteAccess, packaged in META-INF/versions/11 of the multi-release jar; a single
+// VarHandle access compiles to one (possibly unaligned) load or store instead of a byte-wise shift chain
+final class ByteAccess {
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT   = MethodHandles.byteArrayViewVarHandle(int[].class,   ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG  = MethodHandles.byteArrayViewVarHandle(long[].class,  ByteOrder.LITTLE_ENDIAN);
+
+    private ByteAccess() {
+    }
+
+    static short getShort(byte[] buffer, int index) {
+        return (short) SHORT.get(buffer, index);
+    }
+
+    static int getInt(byte[] buffer, int index) {
+        return (int) INT.get(buffer, index);
+    }
+
+    static long getLong(byte[] buffer, int index) {
+        return (long) LONG.get(buffer, index);
+    }
+
+    static void putShort(byte[] buffer, int index, short value) {
+        SHORT.set(buffer, index, value);
+    }
+
+    static void putInt(byte[] buffer, int index, int value) {
+        INT.set(buffer, index, value);
+    }
+
+    static void putLong(byte[] buffer, int index, long value) {
+        LONG.set(buffer, index, value);
+    }
+}
@@ -0,0 +1,157 @@
+package org.blom.martin.usb;
+
+import jdk.jfr.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+// Java 11+ version of FlightRecorderMetrics, packaged in META-INF/versions/11 of the multi-release jar.
+// Decoded and decode latency events fire once per report and are disabled unless a recording settings file
+// enables them; while the latency event is disabled, single-report decodes are not timed at all.
+public class FlightRecorderMetrics
+    extends Metrics {
+    private static final EventType DECODE_LATENCY = EventType.getEventType(DecodeLatencyEvent.class);
+
+    @Override public boolean isEnabled() {
+        return FlightRecorder.isInitialized();
+    }
+
+    @Override public void parsed(int bytes, long nanos) {
+        ParsedEvent event = new ParsedEvent();
+
+        if (event.shouldCommit()) {
+            event.bytes   = bytes;
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    @Override public void decoded(Control.Type type, int reportID, int reports) {
+        DecodedEvent event = new DecodedEvent();
+
+        if (event.shouldCommit()) {
+            event.type     = type.name();
+            event.reportID = reportID;
+            event.reports  = reports;
+            event.commit();
+        }
+    }
+
+    @Override public boolean timeDecode() {
+        return DECODE_LATENCY.isEnabled();
+    }
+
+    @Override public void decodeLatency(Control.Type type, int reportID, long nanos) {
+        DecodeLatencyEvent event = new DecodeLatencyEvent();
+
+        if (event.shouldCommit()) {
+            event.type     = type.name();
+            event.reportID = reportID;
+            event.elapsed  = nanos;
+            event.commit();
+        }
+    }
+
+    @Override public void batch(Control.Type type, int reports, int bytes, long nanos) {
+        BatchEvent event = new BatchEvent();
+
+        if (event.shouldCommit()) {
+            event.type    = type.name();
+            event.reports = reports;
+            event.bytes   = bytes;
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    @Override public void unknownReport(Control.Type type, int reportID) {
+        RejectedEvent event = new RejectedEvent();
+
+        if (event.shouldCommit()) {
+            event.type      = type.name();
+            event.reportID  = reportID;
+            event.available = -1;
+            event.commit();
+        }
+    }
+
+    @Override public void malformedReport(Control.Type type, int reportID, int available) {
+        RejectedEvent event = new RejectedEvent();
+
+        if (event.shouldCommit()) {
+            event.type      = type.name();
+            event.reportID  = reportID;
+            event.available = available;
+            event.commit();
+        }
+    }
+
+    @Override public String toString() {
+        return String.format("[FlightRecorderMetrics: initialized=%b]", FlightRecorder.isInitialized());
+    }
+
+    @Name("org.blom.martin.usb.DescriptorParsed") @Label("HID Descriptor Parsed") @Category("HID")
+    static final class ParsedEvent
+        extends Event {
+        @Label("Bytes") @DataAmount
+        int bytes;
+
+        @Label("Elapsed") @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("org.blom.martin.usb.ReportsDecoded") @Label("HID Reports Decoded") @Category("HID") @Enabled(false)
+    static final class DecodedEvent
+        extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Report ID")
+        int reportID;
+
+        @Label("Reports")
+        int reports;
+    }
+
+    @Name("org.blom.martin.usb.ReportDecodeLatency") @Label("HID Report Decode Latency") @Category("HID") @Enabled(false)
+    static final class DecodeLatencyEvent
+        extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Report ID")
+        int reportID;
+
+        @Label("Elapsed") @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("org.blom.martin.usb.BatchDecoded") @Label("HID Batch Decoded") @Category("HID")
+    static final class BatchEvent
+        extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Reports")
+        int reports;
+
+        @Label("Bytes") @DataAmount
+        int bytes;
+
+        @Label("Elapsed") @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    // Available is -1 for an unknown report ID, else the number of bytes left for a report that did not fit
+    @Name("org.blom.martin.usb.ReportRejected") @Label("HID Report Rejected") @Category("HID")
+    static final class RejectedEvent
+        extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Report ID")
+        int reportID;
+
+        @Label("Available Bytes")
+        int available;
+    }
+}
@@ -0,0 +1,59 @@
+package org.blom.martin.usb;
+
+import jdk.incubator.vector.*;
+
+// Java 17+ version of ColumnKernel, packaged in META-INF/versions/17 of the multi-release jar. The shift pass runs
+// on jdk.incubator.vector when the module was added with --add-modules jdk.incubator.vector; otherwise, or with
+// -Dorg.blom.martin.usb.vector=false, VECTOR is false and BitField keeps its scalar loops.
+final class ColumnKernel {
+    static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() &&
+                                  !"false".equals(System.getProperty("org.blom.martin.usb.vector"));
+
+    private ColumnKernel() {
+    }
+
+    // Turns count gathered little-endian words into field values: value = word << left >> right
+    static void shift(int[] values, int index, int count, int left, int right, boolean signed) {
+        if (VECTOR) {
+            Vectors.shift(values, index, count, left, right, signed);
+        }
+        else {
+            Scalar.shift(values, index, count, left, right, signed);
+        }
+    }
+
+    // Only loaded once the module is known to be present
+    private static final class Vectors {
+        private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+        static void shift(int[] values, int index, int count, int left, int right, boolean signed) {
+            VectorOperators.Binary op = signed ? VectorOperators.ASHR : VectorOperators.LSHR;
+            int end = index + SPECIES.loopBound(count);
+            int i   = index;
+
+            for (; i < end; i += SPECIES.length()) {
+                IntVector.fromArray(SPECIES, values, i)
+                    .lanewise(VectorOperators.LSHL, left)
+                    .lanewise(op, right)
+                    .intoArray(values, i);
+            }
+
+            Scalar.shift(values, i, index + count - i, left, right, signed);
+        }
+    }
+
+    private static final class Scalar {
+        static void shift(int[] values, int index, int count, int left, int right, boolean signed) {
+            if (signed) {
+                for (int i = index; i < index + count; ++i) {
+                    values[i] = values[i] << left >> right;
+                }
+            }
+            else {
+                for (int i = index; i < index + count; ++i) {
+                    values[i] = values[i] << left >>> right;
+                }
+            }
+        }
+    }
+}
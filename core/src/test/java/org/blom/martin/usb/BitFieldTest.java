@@ -0,0 +1,136 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+// Checks the word-wide BitField engine against a bit-at-a-time reference for every size and bit alignment
+public class BitFieldTest {
+    private final Random random = new Random(1);
+    private final byte[] buffer = new byte[32];
+
+    @Before public void fill() {
+        random.nextBytes(buffer);
+    }
+
+    @Test public void getLong() {
+        ByteBuffer heap   = ByteBuffer.wrap(buffer);
+        ByteBuffer direct = ByteBuffer.allocateDirect(buffer.length);
+
+        direct.put(buffer).clear();
+
+        for (int position = 0; position < 3; ++position) {
+            for (int offset = 0; offset < 16; ++offset) {
+                for (int size = 1; size <= 64; ++size) {
+                    for (boolean signed : new boolean[] { false, true }) {
+                        long expected = naive(buffer, position * 8 + offset, size, signed);
+                        String what   = String.format("@%d+%d:%d %s", position, offset, size, signed ? "signed" : "unsigned");
+
+                        assertEquals(what, expected, BitField.getLong(buffer, position, offset, size, signed));
+                        assertEquals(what, expected, BitField.getLong(heap,   position, offset, size, signed));
+                        assertEquals(what, expected, BitField.getLong(direct, position, offset, size, signed));
+
+                        if (size <= 32) {
+                            assertEquals(what, (int) expected, BitField.getInt(buffer, position, offset, size, signed));
+                            assertEquals(what, (int) expected, BitField.getInt(direct, position, offset, size, signed));
+                            assertEquals(what, (int) expected, ReportDescriptor.peek(buffer, position * 8 + offset, size, signed));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test public void setLong() {
+        for (int offset = 0; offset < 16; ++offset) {
+            for (int size = 1; size <= 64; ++size) {
+                byte[]     array  = buffer.clone();
+                ByteBuffer direct = ByteBuffer.allocateDirect(buffer.length);
+                long       value  = random.nextLong();
+                long       mask   = size == 64 ? -1L : (1L << size) - 1;
+
+                direct.put(buffer).clear();
+                BitField.setLong(array, 1, offset, size, value);
+                BitField.setLong(direct, 1, offset, size, value);
+
+                assertEquals(value & mask, naive(array, 8 + offset, size, false));
+
+                // Bits outside the field are left alone
+                for (int bit = 0; bit < buffer.length * 8; ++bit) {
+                    if (bit < 8 + offset || bit >= 8 + offset + size) {
+                        assertEquals("bit " + bit, naive(buffer, bit, 1, false), naive(array, bit, 1, false));
+                    }
+
+                    assertEquals("direct bit " + bit, array[bit >> 3], direct.get(bit >> 3));
+                }
+            }
+        }
+    }
+
+    @Test public void poke() {
+        for (int offset = 0; offset < 16; ++offset) {
+            for (int size = 1; size <= 32; ++size) {
+                byte[] array = buffer.clone();
+                int    value = random.nextInt();
+
+                ReportDescriptor.poke(array, offset, size, value);
+                assertEquals(value << (32 - size) >> (32 - size), ReportDescriptor.peek(array, offset, size, true));
+                assertEquals((int) naive(array, offset, size, true), ReportDescriptor.peek(array, offset, size, true));
+            }
+        }
+    }
+
+    // vectorTest sets the property; a plain test run must pick the portable kernel
+    @Test public void columnKernel() {
+        assertEquals(Boolean.getBoolean("org.blom.martin.usb.vector.expected"), ColumnKernel.VECTOR);
+    }
+
+    // Both the scalar loops and the ColumnKernel shift pass, which is vectorised when vectorTest runs
+    @Test public void getInts() {
+        byte[]     reports = new byte[7 * 40];
+        ByteBuffer direct  = ByteBuffer.allocateDirect(reports.length);
+        int[]      column  = new int[41];
+
+        random.nextBytes(reports);
+        direct.put(reports).clear();
+
+        for (int offset = 0; offset < 24; ++offset) {
+            for (int size = 1; size <= 32 && offset + size <= 48; ++size) {
+                for (int mode = 0; mode < 8; ++mode) {
+                    boolean signed = (mode & 1) != 0;
+                    boolean vector = (mode & 2) != 0;
+
+                    if ((mode & 4) == 0) {
+                        BitField.getInts(reports, 1, 7, 40, offset, size, signed, column, 1, vector);
+                    }
+                    else {
+                        BitField.getInts(direct, 1, 7, 40, offset, size, signed, column, 1, vector);
+                    }
+
+                    for (int row = 0; row < 40; ++row) {
+                        assertEquals((int) naive(reports, (1 + row * 7) * 8 + offset, size, signed), column[row + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long naive(byte[] buffer, int offset, int size, boolean signed) {
+        long value = 0;
+
+        for (int i = 0; i < size; ++i) {
+            int bit = offset + i;
+
+            value |= (long) (buffer[bit >> 3] >> (bit & 7) & 1) << i;
+        }
+
+        if (signed && size < 64 && (value & 1L << (size - 1)) != 0) {
+            value |= -1L << size;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,136 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.function.*;
+
+import static org.junit.Assert.*;
+
+public class HexTest {
+    private final Random random = new Random(1);
+
+    @Test public void roundTrip() {
+        byte[] data = new byte[256];
+
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+
+        String hex = Hex.encode(data);
+
+        assertEquals("00010203", hex.substring(0, 8));
+        assertEquals("FCFDFEFF", hex.substring(504));
+        assertArrayEquals(data, Hex.decode(hex));
+        assertArrayEquals(data, Hex.decode(hex.toLowerCase()));
+        assertEquals("0A0B", Hex.encode(data, 10, 2));
+        assertEquals("[0000000a, ffffffff]", Hex.encode(new int[] { 10, -1 }));
+        assertEquals("[]", Hex.encode(new int[0]));
+    }
+
+    // 1.0 silently dropped the last digit of odd-length input; it is rejected now
+    @Test public void oddLength() {
+        assertThrows(IllegalArgumentException.class, new ThrowingRunnable() {
+            @Override public void run() {
+                ReportDescriptor.fromHexString("0A0");
+            }
+        });
+
+        assertThrows(IllegalArgumentException.class, new ThrowingRunnable() {
+            @Override public void run() {
+                Hex.decode("0A0B", 1, 4, new byte[2], 0);
+            }
+        });
+
+        assertThrows(EOFException.class, new ThrowingRunnable() {
+            @Override public void run()
+                throws Exception {
+                Hex.decode(new StringReader("0A 0"), new ByteArrayOutputStream());
+            }
+        });
+    }
+
+    @Test public void invalidDigit() {
+        for (final String hex : new String[] { "0G", "G0", "0:", "@A", "0 ", "é0" }) {
+            assertThrows(hex, IllegalArgumentException.class, new ThrowingRunnable() {
+                @Override public void run() {
+                    Hex.decode(hex);
+                }
+            });
+        }
+
+        // Whitespace may separate byte pairs in a stream, but not split one
+        for (final String hex : new String[] { "0A 0X", "0 A", "0Aé" }) {
+            assertThrows(hex, IOException.class, new ThrowingRunnable() {
+                @Override public void run()
+                    throws Exception {
+                    Hex.decode(new StringReader(hex), new ByteArrayOutputStream());
+                }
+            });
+        }
+    }
+
+    @Test public void streams()
+        throws Exception {
+        byte[] data = new byte[20000];
+
+        random.nextBytes(data);
+
+        for (int lineLength : new int[] { 0, 1, 16, 7000 }) {
+            StringWriter hex = new StringWriter();
+
+            assertEquals(data.length, Hex.encode(new ByteArrayInputStream(data), hex, lineLength));
+
+            String text = hex.toString();
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+            if (lineLength > 0) {
+                assertEquals(lineLength * 2, text.indexOf('\n'));
+                assertTrue(text.endsWith("\n"));
+            }
+
+            assertEquals(data.length, Hex.decode(new StringReader(text), decoded));
+            assertArrayEquals(data, decoded.toByteArray());
+        }
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+        assertEquals(3, Hex.decode(new StringReader("  0a\r\n\t1B   ff \n"), decoded));
+        assertArrayEquals(new byte[] { 0x0a, 0x1b, (byte) 0xff }, decoded.toByteArray());
+    }
+
+    @Test public void byteBuffers() {
+        byte[] data = new byte[64];
+
+        random.nextBytes(data);
+
+        String hex = Hex.encode(data);
+
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(70), ByteBuffer.allocateDirect(70) }) {
+            buffer.position(3);
+
+            assertEquals(64, Hex.decode("XX" + hex + "YY", 2, 2 + hex.length(), buffer));
+            assertEquals(67, buffer.position());
+
+            buffer.flip().position(3);
+
+            assertEquals(hex, Hex.encode(buffer));
+            assertEquals(3, buffer.position());
+        }
+    }
+
+    @Test public void charArrays() {
+        byte[] data = { 1, (byte) 0xab, 0x7f };
+        char[] out  = Hex.encode(data, 1, 2, new char[6], 1);
+
+        assertEquals("\u0000AB7F\u0000", new String(out));
+        assertEquals("<01AB>", Hex.encode(data, 0, 2, new StringBuilder("<")).append('>').toString());
+
+        byte[] bytes = new byte[4];
+
+        assertEquals(2, Hex.decode("ab7F", 0, 4, bytes, 1));
+        assertArrayEquals(new byte[] { 0, (byte) 0xab, 0x7f, 0 }, bytes);
+    }
+}
@@ -0,0 +1,140 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class ReportDescriptorCacheTest {
+    // One 16-bit X axis; only the logical range differs between them
+    private static final String[] AXES = {
+        "05010902A1010930150026FF00751095018102C0",
+        "05010902A10109301500260001751095018102C0",
+        "05010902A10109301500260002751095018102C0",
+        "05010902A10109301500260003751095018102C0",
+    };
+
+    // Different bytes with the same 32-bit key hash
+    private static final String COLLISION_A = "05010902A1010930150026242B751095018102C0";
+    private static final String COLLISION_B = "05010902A10109301501267B2B751095018102C0";
+
+    @Test public void counters()
+        throws Exception {
+        ReportDescriptorCache cache = new ReportDescriptorCache(4);
+        ReportDescriptor first = cache.get(bytes(AXES[0]));
+
+        assertSame(first, cache.get(bytes(AXES[0])));
+        assertNotSame(first, cache.get(bytes(AXES[1])));
+
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.evictions());
+        assertEquals(2, cache.size());
+
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertNotSame(first, cache.get(bytes(AXES[0])));
+        assertEquals(3, cache.misses());
+    }
+
+    @Test public void leastRecentlyUsed()
+        throws Exception {
+        ReportDescriptorCache cache = new ReportDescriptorCache(2);
+        ReportDescriptor zero = cache.get(bytes(AXES[0]));
+        ReportDescriptor one  = cache.get(bytes(AXES[1]));
+
+        // Using 0 again leaves 1 as the eldest, so adding 2 evicts 1
+        assertSame(zero, cache.get(bytes(AXES[0])));
+        cache.get(bytes(AXES[2]));
+
+        assertEquals(1, cache.evictions());
+        assertEquals(2, cache.size());
+        assertSame(zero, cache.get(bytes(AXES[0])));
+        assertNotSame(one, cache.get(bytes(AXES[1])));
+
+        // That evicted 2, the eldest after 0 was used
+        assertEquals(2, cache.evictions());
+        assertEquals(4, cache.misses());
+        assertEquals(2, cache.hits());
+    }
+
+    @Test public void sameHashDifferentBytes()
+        throws Exception {
+        ReportDescriptorCache cache = new ReportDescriptorCache(4);
+        ReportDescriptor a = cache.get(bytes(COLLISION_A));
+        ReportDescriptor b = cache.get(bytes(COLLISION_B));
+
+        assertNotSame(a, b);
+        assertEquals(0x2b24, a.getField(0x00010030).logicalMaximum());
+        assertEquals(0x2b7b, b.getField(0x00010030).logicalMaximum());
+        assertSame(a, cache.get(bytes(COLLISION_A)));
+        assertSame(b, cache.get(bytes(COLLISION_B)));
+        assertEquals(2, cache.size());
+    }
+
+    // Changing the caller's array afterwards must not change the cached key
+    @Test public void copiesKey()
+        throws Exception {
+        ReportDescriptorCache cache = new ReportDescriptorCache(4);
+        byte[] bytes = bytes(AXES[0]);
+        ReportDescriptor descriptor = cache.get(bytes);
+
+        System.arraycopy(bytes(AXES[1]), 0, bytes, 0, bytes.length);
+
+        assertNotSame(descriptor, cache.get(bytes));
+        assertSame(descriptor, cache.get(bytes(AXES[0])));
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.hits());
+    }
+
+    // Fewer entries than descriptors, so threads keep evicting each other's entries
+    @Test public void concurrentGet()
+        throws Exception {
+        final ReportDescriptorCache cache = new ReportDescriptorCache(2);
+        final AtomicInteger wrong = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int t = 0; t < 8; ++t) {
+            final int seed = t;
+
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override public Void call()
+                    throws Exception {
+                    Random random = new Random(seed);
+
+                    for (int i = 0; i < 2000; ++i) {
+                        int which = random.nextInt(AXES.length);
+                        ReportDescriptor descriptor = cache.get(bytes(AXES[which]));
+
+                        if (descriptor.getField(0x00010030, Control.Type.INPUT).logicalMaximum() != (which == 0 ? 0xff : which << 8)) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        executor.shutdown();
+
+        assertEquals(0, wrong.get());
+        assertEquals(8 * 2000, cache.hits() + cache.misses());
+        assertTrue(cache.size() <= 2);
+        assertTrue(cache.evictions() > 0);
+    }
+
+    private static byte[] bytes(String hex) {
+        return ReportDescriptor.fromHexString(hex);
+    }
+}
@@ -0,0 +1,220 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+import org.junit.function.*;
+
+import static org.junit.Assert.*;
+
+// Pins the output of main() for the example descriptors it lists, one resource file per example
+public class ReportDescriptorTest {
+    static final String BARCODE_SCANNER = "058C0902A1010912A1028502150026FF00750895010501093B81029503058C09FB09FC09FD8102953809FE8202020666FF9502090009008102058C25017501950809FF8102C00914A10285041500250175019508095F0960098509869186C006FFFF0901A10285F0150026FF007508953F0902820202953F0903920202C0C0";
+    static final String PS3_CONTROLLER  = "05010904A101A102850175089501150026FF00810375019513150025013500450105091901291381027501950D0600FF8103150026FF0005010901A10075089504350046FF0009300931093209358102C0050175089527090181027508953009019102750895300901B102C0A1028502750895300901B102C0A10285EE750895300901B102C0A10285EF750895300901B102C0C0";
+    static final String MEDIA_CONTROL   = "050C0901A101050C150025017501950709B509B609B709CD09E209E909EA810295018101C0";
+    static final String KEYBOARD        = "05010906A101050719E029E71500250175019508810295017508810195057501050819012905910295017503910195067508150025650507190029658100C0";
+    static final String MOUSE           = "05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0";
+
+    @Test public void barcodeScanner()
+        throws Exception {
+        assertMain("barcode.txt", BARCODE_SCANNER);
+    }
+
+    @Test public void ps3Controller()
+        throws Exception {
+        assertMain("ps3.txt", PS3_CONTROLLER);
+    }
+
+    @Test public void mediaControl()
+        throws Exception {
+        assertMain("media.txt", MEDIA_CONTROL);
+    }
+
+    @Test public void keyboard()
+        throws Exception {
+        assertMain("keyboard.txt", KEYBOARD);
+    }
+
+    @Test public void mouse()
+        throws Exception {
+        assertMain("mouse.txt", MOUSE);
+    }
+
+    @Test public void inputStreamMatchesByteArray()
+        throws Exception {
+        for (String hex : new String[] { BARCODE_SCANNER, PS3_CONTROLLER, MEDIA_CONTROL, KEYBOARD, MOUSE }) {
+            byte[] raw = ReportDescriptor.fromHexString(hex);
+
+            assertEquals(new ReportDescriptor(raw).reports.keySet(),
+                         new ReportDescriptor(new ByteArrayInputStream(raw)).reports.keySet());
+        }
+    }
+
+    // Consumer Control array listing Volume Increment and Volume Decrement instead of a usage range
+    @Test public void usageListArray()
+        throws Exception {
+        ReportDescriptor hrd = new ReportDescriptor(ReportDescriptor.fromHexString("050C0901A101150125027502950109E909EA8100C0"));
+        ReportLayout layout  = hrd.layout(0, Control.Type.INPUT);
+        final int[] listed   = new int[2];
+
+        assertEquals(1, layout.fieldCount());
+        assertTrue(layout.isArray(0));
+        assertArrayEquals(new int[] { 0x000c00e9, 0x000c00ea }, layout.usageList(0));
+        assertEquals(0,          layout.arrayUsage(0, 0));
+        assertEquals(0x000c00e9, layout.arrayUsage(0, 1));
+        assertEquals(0x000c00ea, layout.arrayUsage(0, 2));
+        assertEquals(0,          layout.arrayUsage(0, 3));
+
+        hrd.evaluate(0, Control.Type.INPUT, new ReportFilter() {
+            @Override public void array(Control control, int[] usages, int offset) {
+                System.arraycopy(usages, 0, listed, 0, 2);
+            }
+        });
+
+        assertArrayEquals(new int[] { 0x000c00e9, 0x000c00ea }, listed);
+        assertEquals(0x000c00ea, hrd.compile(0, Control.Type.INPUT, 0x000c00ea).usageMaximum(0));
+        assertEquals(0, hrd.compile(0, Control.Type.INPUT, 0x000c00eb).fieldCount());
+    }
+
+    // Report 2 opens and closes a delimiter set without usages, which no layout can be built for
+    @Test public void brokenReportKeepsOthers()
+        throws Exception {
+        final ReportDescriptor hrd = new ReportDescriptor(ReportDescriptor.fromHexString("05010902A10185017508950109308102" +
+                                                                                         "8502A901A9008102C0"));
+
+        assertNotNull(hrd.layout(1, Control.Type.INPUT));
+        assertNull(hrd.layout(2, Control.Type.INPUT));
+        assertEquals(0, hrd.reportLength(2, Control.Type.INPUT));
+        assertNull(hrd.dispatch(new byte[] { 2, 0 }, 0, 2, Control.Type.INPUT));
+
+        assertThrows(RuntimeException.class, new ThrowingRunnable() {
+            @Override public void run() {
+                hrd.evaluate(2, Control.Type.INPUT, ReportFilter.ALL);
+            }
+        });
+    }
+
+    // A batch skips the report without a layout and stops at it like at an unknown ID
+    @Test public void brokenReportBatch()
+        throws Exception {
+        ReportBatch batch = new ReportBatch(new ReportDescriptor(ReportDescriptor.fromHexString("05010902A10185017508950109308102" +
+                                                                                                "8502A901A9008102C0")),
+                                            Control.Type.INPUT);
+
+        assertNull(batch.layout(2));
+        assertEquals(4, batch.decode(new byte[] { 1, 5, 1, 7, 2, 0 }, 0, 6));
+        assertEquals(2, batch.count(1));
+        assertEquals(0, batch.count(2));
+        assertEquals(5, batch.column(1, 0)[0]);
+        assertEquals(7, batch.column(1, 0)[1]);
+    }
+
+    // LED usage 1 in OUTPUT report 1 and FEATURE report 2; FEATURE is looked up before OUTPUT
+    @Test public void fieldLookupOrder()
+        throws Exception {
+        ReportDescriptor hrd = new ReportDescriptor(ReportDescriptor.fromHexString("05010906A1018501050809017508950191028502" +
+                                                                                   "0901B102C0"));
+
+        assertEquals(Control.Type.FEATURE, hrd.getField(0x00080001).type());
+        assertEquals(2, hrd.getField(0x00080001).reportID());
+        assertEquals(1, hrd.getField(0x00080001, Control.Type.OUTPUT).reportID());
+        assertNull(hrd.getField(0x00080001, Control.Type.INPUT));
+    }
+
+    // A three-byte long item with tag 0x10, then Usage Page; parse() fills longValue like read() does
+    @SuppressWarnings("deprecation")
+    @Test public void longItem()
+        throws Exception {
+        byte[] bytes = ReportDescriptor.fromHexString("FE0310AABBCC0501");
+        ReportDescriptor.Item item = new ReportDescriptor.Item();
+
+        for (int variant = 0; variant < 3; ++variant) {
+            int next;
+
+            if (variant == 0) {
+                next = item.parse(bytes, 0, bytes.length);
+            }
+            else if (variant == 1) {
+                next = item.parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+            }
+            else {
+                item = ReportDescriptor.Item.read(new ByteArrayInputStream(bytes));
+                next = 6;
+            }
+
+            assertEquals(6, next);
+            assertTrue(item.isLong());
+            assertEquals(0x10, item.tag);
+            assertEquals(3, item.length);
+            assertArrayEquals(new byte[] { (byte) 0xaa, (byte) 0xbb, (byte) 0xcc }, item.longValue);
+            assertEquals(ByteBuffer.wrap(item.longValue), item.longData());
+        }
+
+        assertEquals(8, item.parse(bytes, 6, bytes.length));
+        assertFalse(item.isLong());
+        assertNull(item.longValue);
+    }
+
+    // Usage Minimum X and Maximum Y for three variables, so the third field reuses Y
+    @Test public void shortUsageRange()
+        throws Exception {
+        ReportLayout layout = new ReportDescriptor(ReportDescriptor.fromHexString("05010902A10175089503193029318102C0"))
+            .layout(0, Control.Type.INPUT);
+
+        assertEquals(3, layout.fieldCount());
+        assertEquals(0x00010030, layout.usage(0));
+        assertEquals(0x00010031, layout.usage(1));
+        assertEquals(0x00010031, layout.usage(2));
+    }
+
+    // The Mouse pointer collection is nested in the application collection, which must not be pruned
+    @Test public void collectionFilter()
+        throws Exception {
+        ReportDescriptor hrd = new ReportDescriptor(ReportDescriptor.fromHexString(MOUSE));
+
+        assertEquals(5, hrd.compile(0, Control.Type.INPUT, ReportFilter.collection(0x00010001)).fieldCount());
+        assertEquals(5, hrd.compile(0, Control.Type.INPUT, ReportFilter.collection(0x00010002)).fieldCount());
+        assertEquals(0, hrd.compile(0, Control.Type.INPUT, ReportFilter.collection(0x00010006)).fieldCount());
+    }
+
+    private static void assertMain(String resource, String hex)
+        throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+
+        try {
+            ReportDescriptor.main(new String[] { hex });
+        }
+        finally {
+            System.setOut(stdout);
+        }
+
+        assertEquals(resource, read(resource), out.toString("UTF-8").replace("\r\n", "\n"));
+    }
+
+    private static String read(String resource)
+        throws IOException {
+        InputStream is = ReportDescriptorTest.class.getResourceAsStream(resource);
+
+        assertNotNull("Missing resource " + resource, is);
+
+        try {
+            Reader reader = new InputStreamReader(is, "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+
+            for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+                sb.append(buffer, 0, n);
+            }
+
+            return sb.toString();
+        }
+        finally {
+            is.close();
+        }
+    }
+}
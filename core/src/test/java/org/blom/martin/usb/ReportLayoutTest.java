@@ -0,0 +1,52 @@
+package org.blom.martin.usb;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class ReportLayoutTest {
+    // Unsigned 32-bit X with logical 0..0xffffffff, then an 8-bit Y with physical 0..0x7fffffff and unit exponent 2
+    private static final String WIDE = "05010930A10175209501150027FFFFFFFF093081027508150025013500" +
+                                       "47FFFFFF7F550209318102C0";
+
+    @Test public void fixedMatchesPhysical()
+        throws Exception {
+        ReportLayout layout = new ReportDescriptor(ReportDescriptor.fromHexString(ReportDescriptorTest.MOUSE)).layout(0, Control.Type.INPUT);
+        int[]  column = { -127, -1, 0, 1, 127 };
+        long[] fixed  = new long[column.length];
+
+        for (int field = 3; field <= 4; ++field) {
+            assertTrue(layout.isFixedExact(field));
+            layout.toFixed(field, column, 0, column.length, fixed, 0);
+
+            for (int i = 0; i < column.length; ++i) {
+                assertEquals(Math.round(layout.physical(field, column[i]) * 65536), fixed[i]);
+            }
+        }
+    }
+
+    @Test public void fixedOutOfRange()
+        throws Exception {
+        ReportLayout layout = new ReportDescriptor(ReportDescriptor.fromHexString(WIDE)).layout(0, Control.Type.INPUT);
+        int[]    column   = { -1, 0, 1 };
+        long[]   fixed    = new long[column.length];
+        double[] physical = new double[column.length];
+
+        // Unsigned 32-bit raw values arrive as negative ints and must be widened
+        assertFalse(layout.isFixedExact(0));
+        layout.toFixed(0, column, 0, column.length, fixed, 0);
+        layout.toPhysical(0, column, 0, column.length, physical, 0);
+        assertArrayEquals(new long[] { 0xffffffffL << 16, 0, 1L << 16 }, fixed);
+        assertArrayEquals(new double[] { 0xffffffffL, 0, 1 }, physical, 0);
+        assertEquals(0xffffffffL, layout.physical(0, -1), 0);
+        assertEquals(0xffffffffL, layout.field(0).physical(-1), 0);
+        assertEquals(0xffffffffL, layout.decode(new byte[] { -1, -1, -1, -1, 0 }, 0, new double[2])[0], 0);
+
+        // A scale of 2^31 * 100 does not fit the Q31.32 scale
+        assertFalse(layout.isFixedExact(1));
+        layout.toFixed(1, column, 1, 2, fixed, 0);
+        assertEquals(0, fixed[0]);
+        assertEquals(0x7fffffffL * 100 << 16, fixed[1]);
+    }
+}
@@ -0,0 +1,131 @@
+package org.blom.martin.usb;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class StatisticsTest {
+    // Report 1 is a single byte and report 2 two bytes
+    private static final String NUMBERED = "05010902A10185017508950109308102850275089502093009318102C0";
+
+    private Statistics statistics;
+
+    @Before public void setUp() {
+        statistics = new Statistics();
+        ReportDescriptor.setMetrics(statistics);
+    }
+
+    @After public void tearDown() {
+        ReportDescriptor.setMetrics(null);
+    }
+
+    @Test public void outOfRangeReportIDs() {
+        statistics.unknownReport(Control.Type.INPUT, 256);
+        statistics.unknownReport(Control.Type.INPUT, -1);
+        statistics.decoded(Control.Type.INPUT, 0x101, 3);
+
+        assertEquals(0, statistics.unknown(Control.Type.INPUT, 0));
+        assertEquals(0, statistics.unknown(Control.Type.INPUT, 255));
+        assertEquals(0, statistics.unknown(Control.Type.OUTPUT, 0));
+        assertEquals(2, statistics.unknown(Control.Type.INPUT, 256));
+        assertEquals(2, statistics.unknown(Control.Type.INPUT, Integer.MIN_VALUE));
+        assertEquals(0, statistics.decoded(Control.Type.INPUT, 1));
+        assertEquals(3, statistics.decoded(Control.Type.INPUT, 0x101));
+    }
+
+    @Test public void layoutDecodeCounted()
+        throws Exception {
+        ReportLayout layout = new ReportDescriptor(ReportDescriptor.fromHexString(NUMBERED)).layout(2, Control.Type.INPUT);
+
+        layout.decode(new byte[3], 1, new int[2]);
+        layout.decode(new byte[3], 1, new long[2]);
+        layout.decode(new byte[3], 1, new double[2]);
+
+        assertEquals(3, statistics.decoded(Control.Type.INPUT, 2));
+    }
+
+    @Test public void partialReportNotMalformed()
+        throws Exception {
+        ReportBatch batch = new ReportBatch(new ReportDescriptor(ReportDescriptor.fromHexString(NUMBERED)), Control.Type.INPUT);
+        byte[] data = { 1, 10, 2, 20, 30, 2, 40 };
+
+        assertEquals(5, batch.decode(data, 0, data.length));
+        assertEquals(0, statistics.malformed(Control.Type.INPUT, 2));
+        assertEquals(1, statistics.decoded(Control.Type.INPUT, 1));
+        assertEquals(1, statistics.decoded(Control.Type.INPUT, 2));
+
+        data[5] = 3;
+
+        assertEquals(0, batch.decode(data, 5, 2));
+        assertEquals(1, statistics.unknown(Control.Type.INPUT, 3));
+    }
+
+    @Test public void decodeLatency()
+        throws Exception {
+        ReportLayout layout = new ReportDescriptor(ReportDescriptor.fromHexString(NUMBERED)).layout(2, Control.Type.INPUT);
+        Statistics   every  = new Statistics(1);
+
+        for (int i = 0; i < 6400; ++i) {
+            layout.decode(new byte[3], 1, new int[2]);
+        }
+
+        // About one in 64 is timed by default
+        long sampled = sum(statistics.decodeHistogram());
+
+        assertTrue(String.valueOf(sampled), sampled > 0 && sampled < 400);
+        assertTrue(statistics.getDecodeNanosP99() > 0);
+
+        ReportDescriptor.setMetrics(every);
+        layout.decode(new byte[3], 1, new long[2]);
+        layout.decode(new byte[3], 1, new double[2]);
+
+        assertEquals(2, sum(every.decodeHistogram()));
+
+        every.reset();
+
+        assertEquals(0, sum(every.decodeHistogram()));
+    }
+
+    @Test public void composite()
+        throws Exception {
+        Statistics other    = new Statistics(1);
+        Metrics    disabled = new Metrics() {
+            @Override public boolean isEnabled() {
+                return false;
+            }
+
+            @Override public void decoded(Control.Type type, int reportID, int reports) {
+                fail("Called while disabled");
+            }
+        };
+
+        ReportDescriptor.setMetrics(Metrics.of(statistics, other, disabled));
+
+        ReportDescriptor hrd = new ReportDescriptor(ReportDescriptor.fromHexString(NUMBERED));
+
+        hrd.layout(1, Control.Type.INPUT).decode(new byte[2], 1, new int[1]);
+        hrd.dispatch(new byte[] { 3 }, 0, 1, Control.Type.INPUT);
+
+        for (Statistics s : new Statistics[] { statistics, other }) {
+            assertEquals(1, s.getDescriptorsParsed());
+            assertEquals(1, s.decoded(Control.Type.INPUT, 1));
+            assertEquals(1, s.unknown(Control.Type.INPUT, 3));
+        }
+
+        // other times every decode, and the latency reaches both
+        assertEquals(1, sum(other.decodeHistogram()));
+        assertEquals(1, sum(statistics.decodeHistogram()));
+        assertFalse(Metrics.of(disabled, Metrics.NONE).isEnabled());
+    }
+
+    private static long sum(long[] histogram) {
+        long sum = 0;
+
+        for (long count : histogram) {
+            sum += count;
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,217 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+// Layout, all little-endian:
+//
+//   header:  "HIDCAP01", descriptor length (4), descriptor
+//   records: timestamp (8), type (1), report ID (1), length (2), report data without the ID prefix
+//   index:   one entry of INDEX_LONGS longs per block, see CaptureWriter.startBlock()
+//   trailer: index offset (8), record count (8), block count (4), block size (4), "HIDIDX01"
+public final class CaptureFile
+    implements Closeable {
+    static final long HEADER_MAGIC    = 0x3130504143444948L;
+    static final long TRAILER_MAGIC   = 0x3130584449444948L;
+    static final int  RECORD_HEADER   = 12;
+    static final int  TRAILER         = 32;
+    static final int  INDEX_LONGS     = 8;
+    static final int  MAX_BLOCK_BYTES = 1 << 26;
+
+    private static final Control.Type[] TYPES = Control.Type.values();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ReportDescriptor descriptor;
+    private final long indexOffset;
+    private final long records;
+    private final int blocks;
+    private final int blockSize;
+    private final long[] index;
+
+    private MappedByteBuffer window;
+    private int windowBlock = -1;
+
+    public CaptureFile(File path)
+        throws IOException {
+        file    = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+
+        try {
+            ByteBuffer header  = read(0, 12);
+            ByteBuffer trailer = read(channel.size() - TRAILER, TRAILER);
+
+            if (header.getLong(0) != HEADER_MAGIC || trailer.getLong(24) != TRAILER_MAGIC) {
+                throw new IOException(path + " is not a complete capture file");
+            }
+
+            descriptor  = new ReportDescriptor(read(12, header.getInt(8)));
+            indexOffset = trailer.getLong(0);
+            records     = trailer.getLong(8);
+            blocks      = trailer.getInt(16);
+            blockSize   = trailer.getInt(20);
+            index       = new long[blocks * INDEX_LONGS];
+
+            read(indexOffset, index.length * 8).asLongBuffer().get(index);
+        }
+        catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            file.close();
+            throw new IOException("Corrupt capture file " + path, ex);
+        }
+    }
+
+    public ReportDescriptor descriptor() {
+        return descriptor;
+    }
+
+    public long records() {
+        return records;
+    }
+
+    public int blocks() {
+        return blocks;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public long startTime() {
+        return blocks == 0 ? 0 : index[2];
+    }
+
+    public long endTime() {
+        return blocks == 0 ? 0 : index[(blocks - 1) * INDEX_LONGS + 3];
+    }
+
+    public boolean hasReport(int block, int reportID) {
+        return (index[block * INDEX_LONGS + 4 + (reportID >> 6)] & 1L << reportID) != 0;
+    }
+
+    // Returns the first block that may hold records at or after timestamp, or blocks() if there is none
+    public int findBlock(long timestamp) {
+        int lo = 0;
+        int hi = blocks;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (index[mid * INDEX_LONGS + 3] < timestamp) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    public long replay(long from, long to, Listener listener)
+        throws IOException {
+        return replay(from, to, -1, listener);
+    }
+
+    public long replay(long from, long to, int reportID, Listener listener)
+        throws IOException {
+        long count = 0;
+
+        for (int block = findBlock(from); block < blocks && index[block * INDEX_LONGS + 2] <= to; ++block) {
+            if (reportID >= 0 && !hasReport(block, reportID)) {
+                continue;
+            }
+
+            ByteBuffer buffer = map(block);
+            int end = buffer.limit();
+
+            for (int pos = 0; pos < end; ) {
+                if (pos + RECORD_HEADER > end) {
+                    throw corrupt(block, pos, "truncated record header");
+                }
+
+                long timestamp = buffer.getLong(pos);
+                int  type      = buffer.get(pos + 8);
+                int  id        = buffer.get(pos + 9) & 0xff;
+                int  length    = buffer.getShort(pos + 10) & 0xffff;
+
+                if (type < 0 || type >= TYPES.length) {
+                    throw corrupt(block, pos, "invalid report type " + type);
+                }
+                else if (pos + RECORD_HEADER + length > end) {
+                    throw corrupt(block, pos, "record length " + length + " exceeds its block");
+                }
+
+                if (timestamp > to) {
+                    return count;
+                }
+
+                if (timestamp >= from && (reportID < 0 || id == reportID)) {
+                    ++count;
+
+                    if (!listener.report(timestamp, TYPES[type], id, buffer, pos + RECORD_HEADER, length)) {
+                        return count;
+                    }
+                }
+
+                pos += RECORD_HEADER + length;
+            }
+        }
+
+        return count;
+    }
+
+    @Override public void close()
+        throws IOException {
+        window = null;
+        file.close();
+    }
+
+    @Override public String toString() {
+        return String.format("[CaptureFile: records=%d blocks=%d blockSize=%d time=%d..%d]",
+                             records, blocks, blockSize, startTime(), endTime());
+    }
+
+    private IOException corrupt(int block, int position, String problem) {
+        return new IOException(String.format("Corrupt capture record at offset %d: %s", index[block * INDEX_LONGS] + position, problem));
+    }
+
+    private ByteBuffer map(int block)
+        throws IOException {
+        if (windowBlock != block) {
+            long start = index[block * INDEX_LONGS];
+            long end   = block + 1 < blocks ? index[(block + 1) * INDEX_LONGS] : indexOffset;
+
+            window      = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            windowBlock = block;
+
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        return window;
+    }
+
+    private ByteBuffer read(long position, int length)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public interface Listener {
+        public boolean report(long timestamp, Control.Type type, int reportID, ByteBuffer buffer, int position, int length);
+    }
+}
@@ -0,0 +1,190 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+public final class CaptureWriter
+    implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final int blockSize;
+
+    private long   position;
+    private long   records;
+    private long   lastTimestamp = Long.MIN_VALUE;
+    private int    blocks;
+    private long[] index = new long[CaptureFile.INDEX_LONGS * 16];
+
+    public CaptureWriter(File file, byte[] descriptor)
+        throws IOException {
+        this(file, descriptor, 1024);
+    }
+
+    public CaptureWriter(File file, byte[] descriptor, int blockSize)
+        throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+
+        this.channel   = new FileOutputStream(file).getChannel();
+        this.blockSize = blockSize;
+
+        try {
+            buffer.putLong(CaptureFile.HEADER_MAGIC);
+            buffer.putInt(descriptor.length);
+            flush();
+            write(ByteBuffer.wrap(descriptor));
+        }
+        catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public long records() {
+        return records;
+    }
+
+    public CaptureWriter write(long timestamp, Control.Type type, int reportID, byte[] data, int offset, int length)
+        throws IOException {
+        record(timestamp, type, reportID, length);
+
+        if (buffer.remaining() >= length) {
+            buffer.put(data, offset, length);
+        }
+        else {
+            flush();
+            write(ByteBuffer.wrap(data, offset, length));
+        }
+
+        return this;
+    }
+
+    // Writes the remaining bytes of data, leaving its position unchanged
+    public CaptureWriter write(long timestamp, Control.Type type, int reportID, ByteBuffer data)
+        throws IOException {
+        int position = data.position();
+
+        record(timestamp, type, reportID, data.remaining());
+
+        try {
+            if (buffer.remaining() < data.remaining()) {
+                flush();
+                write(data);
+            }
+            else {
+                buffer.put(data);
+            }
+        }
+        finally {
+            data.position(position);
+        }
+
+        return this;
+    }
+
+    @Override public void close()
+        throws IOException {
+        try {
+            long indexOffset = position + buffer.position();
+
+            for (int i = 0; i < blocks * CaptureFile.INDEX_LONGS; ++i) {
+                if (buffer.remaining() < 8) {
+                    flush();
+                }
+
+                buffer.putLong(index[i]);
+            }
+
+            if (buffer.remaining() < CaptureFile.TRAILER) {
+                flush();
+            }
+
+            buffer.putLong(indexOffset);
+            buffer.putLong(records);
+            buffer.putInt(blocks);
+            buffer.putInt(blockSize);
+            buffer.putLong(CaptureFile.TRAILER_MAGIC);
+            flush();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    @Override public String toString() {
+        return String.format("[CaptureWriter: records=%d blocks=%d blockSize=%d]", records, blocks, blockSize);
+    }
+
+    // Validates a record, starts a new block if needed and writes the record header
+    private void record(long timestamp, Control.Type type, int reportID, int length)
+        throws IOException {
+        if (reportID < 0 || reportID > 255) {
+            throw new IllegalArgumentException("Invalid report ID " + reportID);
+        }
+        else if (length < 0 || length > 0xffff) {
+            throw new IllegalArgumentException("Invalid report length " + length);
+        }
+        else if (timestamp < lastTimestamp) {
+            throw new IllegalArgumentException("Timestamp " + timestamp + " precedes " + lastTimestamp);
+        }
+
+        if (blocks == 0 || records - index[(blocks - 1) * CaptureFile.INDEX_LONGS + 1] == blockSize ||
+            position + buffer.position() - index[(blocks - 1) * CaptureFile.INDEX_LONGS] > CaptureFile.MAX_BLOCK_BYTES) {
+            startBlock(timestamp);
+        }
+
+        int base = (blocks - 1) * CaptureFile.INDEX_LONGS;
+
+        index[base + 3] = timestamp;
+        index[base + 4 + (reportID >> 6)] |= 1L << reportID;
+
+        if (buffer.remaining() < CaptureFile.RECORD_HEADER + length) {
+            flush();
+        }
+
+        buffer.putLong(timestamp);
+        buffer.put((byte) type.ordinal());
+        buffer.put((byte) reportID);
+        buffer.putShort((short) length);
+
+        lastTimestamp = timestamp;
+        ++records;
+    }
+
+    // Index entry: file offset, first record, first timestamp, last timestamp and a 256-bit report ID mask
+    private void startBlock(long timestamp) {
+        if ((blocks + 1) * CaptureFile.INDEX_LONGS > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+
+        int base = blocks++ * CaptureFile.INDEX_LONGS;
+
+        index[base]     = position + buffer.position();
+        index[base + 1] = records;
+        index[base + 2] = timestamp;
+        index[base + 3] = timestamp;
+    }
+
+    private void flush()
+        throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer data)
+        throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data);
+        }
+    }
+}
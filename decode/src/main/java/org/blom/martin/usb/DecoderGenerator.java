@@ -0,0 +1,329 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Emits one class per layout with a straight-line decode() method. A chain of MethodHandles bound to each field
+// would still make one indirect call per field, and Lookup.defineClass, hidden classes and java.lang.classfile are
+// not available at the Java 8 release the jars are built for. So the class file is written by hand, as version 50
+// so that the branch-free method needs no stack map frames, and defined in a private class loader.
+public final class DecoderGenerator {
+    // HotSpot does not JIT-compile methods larger than this unless -XX:-DontCompileHugeMethods is given
+    private static final int MAX_CODE_LENGTH = 8000;
+
+    private static final byte ALOAD_0       = (byte) 0x2a;
+    private static final byte ALOAD_1       = (byte) 0x2b;
+    private static final byte ILOAD_2       = (byte) 0x1c;
+    private static final byte ALOAD_3       = (byte) 0x2d;
+    private static final byte ICONST_0      = (byte) 0x03;
+    private static final byte BIPUSH        = (byte) 0x10;
+    private static final byte SIPUSH        = (byte) 0x11;
+    private static final byte LDC_W         = (byte) 0x13;
+    private static final byte BALOAD        = (byte) 0x33;
+    private static final byte IASTORE       = (byte) 0x4f;
+    private static final byte IADD          = (byte) 0x60;
+    private static final byte ISHL          = (byte) 0x78;
+    private static final byte ISHR          = (byte) 0x7a;
+    private static final byte IUSHR         = (byte) 0x7c;
+    private static final byte IAND          = (byte) 0x7e;
+    private static final byte IOR           = (byte) 0x80;
+    private static final byte I2S           = (byte) 0x93;
+    private static final byte ARETURN       = (byte) 0xb0;
+    private static final byte RETURN        = (byte) 0xb1;
+    private static final byte INVOKESPECIAL = (byte) 0xb7;
+    private static final byte INVOKESTATIC  = (byte) 0xb8;
+
+    // Fixed constant pool slots, see generateClass()
+    private static final int OBJECT_INIT     = 10;
+    private static final int BITFIELD_GETINT = 19;
+    private static final int FIRST_INTEGER   = 20;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // Generated decoders do not reference their layout, so an entry goes away with its layout
+    private static final Map<ReportLayout, ReportDecoder> decoders = new WeakHashMap<ReportLayout, ReportDecoder>();
+
+    private DecoderGenerator() {
+    }
+
+    // Returns the same decoder for the same layout; each new layout costs a class and a class loader. Layouts that
+    // cannot be specialized, such as those with fields wider than 32 bits, are returned as they are.
+    public static ReportDecoder specialize(ReportLayout layout) {
+        synchronized (decoders) {
+            ReportDecoder decoder = decoders.get(layout);
+
+            if (decoder == null) {
+                decoder = generate(layout);
+
+                if (decoder != layout) {
+                    decoders.put(layout, decoder);
+                }
+            }
+
+            return decoder;
+        }
+    }
+
+    private static ReportDecoder generate(ReportLayout layout) {
+        try {
+            Code code = generateCode(layout);
+
+            if (code == null) {
+                return layout;
+            }
+
+            String name = "org.blom.martin.usb.GeneratedDecoder" + counter.incrementAndGet();
+            byte[] bytes = generateClass(name.replace('.', '/'), code);
+
+            return (ReportDecoder) new Loader().define(name, bytes).getDeclaredConstructor().newInstance();
+        }
+        catch (Exception ex) {
+            return layout;
+        }
+        catch (LinkageError ex) {
+            return layout;
+        }
+    }
+
+    private static Code generateCode(ReportLayout layout) {
+        Code code = new Code();
+
+        for (int i = 0; i < layout.fieldCount(); ++i) {
+            int offset = layout.offset(i);
+            int size   = layout.size(i);
+
+            if (size > 32) {
+                return null;
+            }
+
+            code.op(ALOAD_3);
+            code.push(i);
+
+            if (size == 0) {
+                code.push(0);
+            }
+            else if (((offset & 7) + size + 7) >> 3 <= 4) {
+                code.extract(offset, size, layout.isSigned(i));
+            }
+            else {
+                code.op(ALOAD_1);
+                code.op(ILOAD_2);
+                code.push(offset);
+                code.push(size);
+                code.push(layout.isSigned(i) ? 1 : 0);
+                code.op(INVOKESTATIC);
+                code.u2(BITFIELD_GETINT);
+            }
+
+            code.op(IASTORE);
+
+            if (code.length() > MAX_CODE_LENGTH) {
+                return null;
+            }
+        }
+
+        code.op(ALOAD_3);
+        code.op(ARETURN);
+
+        return code;
+    }
+
+    private static byte[] generateClass(String name, Code code)
+        throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(bos);
+
+        os.writeInt(0xcafebabe);
+        os.writeShort(0);
+        os.writeShort(50);
+
+        os.writeShort(FIRST_INTEGER + code.integers);
+        utf8(os, name);                                                      //  1
+        os.writeByte(7);  os.writeShort(1);                                  //  2 this class
+        utf8(os, "java/lang/Object");                                        //  3
+        os.writeByte(7);  os.writeShort(3);                                  //  4 super class
+        utf8(os, "org/blom/martin/usb/ReportDecoder");                       //  5
+        os.writeByte(7);  os.writeShort(5);                                  //  6 interface
+        utf8(os, "<init>");                                                  //  7
+        utf8(os, "()V");                                                     //  8
+        os.writeByte(12); os.writeShort(7);  os.writeShort(8);               //  9 <init>:()V
+        os.writeByte(10); os.writeShort(4);  os.writeShort(9);               // 10 Object.<init>
+        utf8(os, "decode");                                                  // 11
+        utf8(os, "([BI[I)[I");                                               // 12
+        utf8(os, "Code");                                                    // 13
+        utf8(os, "org/blom/martin/usb/BitField");                            // 14
+        os.writeByte(7);  os.writeShort(14);                                 // 15
+        utf8(os, "getInt");                                                  // 16
+        utf8(os, "([BIIIZ)I");                                               // 17
+        os.writeByte(12); os.writeShort(16); os.writeShort(17);              // 18 getInt:([BIIIZ)I
+        os.writeByte(10); os.writeShort(15); os.writeShort(18);              // 19 BitField.getInt
+
+        for (int i = 0; i < code.integers; ++i) {
+            os.writeByte(3);
+            os.writeInt(code.integer[i]);                                    // 20...
+        }
+
+        os.writeShort(0x0031);  // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+        os.writeShort(2);
+        os.writeShort(4);
+        os.writeShort(1);
+        os.writeShort(6);
+        os.writeShort(0);       // Fields
+
+        os.writeShort(2);       // Methods
+        method(os, 7,  8,  1, 1, new byte[] { ALOAD_0, INVOKESPECIAL, 0, OBJECT_INIT, RETURN }, 5);
+        method(os, 11, 12, 8, 4, code.bytes, code.length);
+
+        os.writeShort(0);       // Attributes
+
+        return bos.toByteArray();
+    }
+
+    private static void method(DataOutputStream os, int name, int descriptor, int maxStack, int maxLocals, byte[] code, int length)
+        throws IOException {
+        os.writeShort(0x0001);  // ACC_PUBLIC
+        os.writeShort(name);
+        os.writeShort(descriptor);
+        os.writeShort(1);
+        os.writeShort(13);
+        os.writeInt(12 + length);
+        os.writeShort(maxStack);
+        os.writeShort(maxLocals);
+        os.writeInt(length);
+        os.write(code, 0, length);
+        os.writeShort(0);       // Exception table
+        os.writeShort(0);       // Attributes
+    }
+
+    private static void utf8(DataOutputStream os, String value)
+        throws IOException {
+        os.writeByte(1);
+        os.writeUTF(value);
+    }
+
+    private static final class Code {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        private int[] integer = new int[16];
+        private int integers;
+
+        // Straight-line equivalent of BitField.getInt() for fields spanning at most four bytes
+        private void extract(int offset, int size, boolean signed) {
+            int index = offset >> 3;
+            int shift = offset & 7;
+            int span  = (shift + size + 7) >> 3;
+
+            if (shift == 0 && size == 8 && signed) {
+                load(index);
+                return;
+            }
+
+            for (int i = 0; i < span; ++i) {
+                load(index + i);
+
+                // The top byte of a full 32-bit word needs no masking
+                if (i < 3) {
+                    push(0xff);
+                    op(IAND);
+                }
+
+                if (i > 0) {
+                    push(i * 8);
+                    op(ISHL);
+                    op(IOR);
+                }
+            }
+
+            if (shift != 0) {
+                push(shift);
+                op(IUSHR);
+            }
+
+            if (size == 16 && signed) {
+                op(I2S);
+            }
+            else if (size < 32 && signed) {
+                push(32 - size);
+                op(ISHL);
+                push(32 - size);
+                op(ISHR);
+            }
+            else if (size < 32 && size < span * 8 - shift) {
+                push((1 << size) - 1);
+                op(IAND);
+            }
+        }
+
+        private void load(int index) {
+            op(ALOAD_1);
+            op(ILOAD_2);
+            push(index);
+            op(IADD);
+            op(BALOAD);
+        }
+
+        private void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op((byte) (ICONST_0 + value));
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                op((byte) value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            }
+            else {
+                op(LDC_W);
+                u2(constant(value));
+            }
+        }
+
+        private int constant(int value) {
+            for (int i = 0; i < integers; ++i) {
+                if (integer[i] == value) {
+                    return FIRST_INTEGER + i;
+                }
+            }
+
+            if (integers == integer.length) {
+                integer = Arrays.copyOf(integer, integers * 2);
+            }
+
+            integer[integers] = value;
+
+            return FIRST_INTEGER + integers++;
+        }
+
+        private void op(byte op) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+
+            bytes[length++] = op;
+        }
+
+        private void u2(int value) {
+            op((byte) (value >> 8));
+            op((byte) value);
+        }
+
+        private int length() {
+            return length;
+        }
+    }
+
+    private static final class Loader
+        extends ClassLoader {
+        private Loader() {
+            super(ReportDecoder.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
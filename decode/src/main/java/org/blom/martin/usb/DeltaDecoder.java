@@ -0,0 +1,190 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+public final class DeltaDecoder {
+    private final ReportLayout layout;
+    private final int byteLength;
+    private final long lastWordMask;
+
+    private final int[] firstField;
+    private final int[] lastField;
+
+    private final long[] words;
+    private final int[] values;
+    private boolean primed;
+
+    public DeltaDecoder(ReportLayout layout) {
+        int count = (layout.byteLength() + 7) / 8;
+        int tail  = layout.bitLength() % 64;
+
+        this.layout       = layout;
+        this.byteLength   = layout.byteLength();
+        this.lastWordMask = tail == 0 ? -1L : -1L >>> (64 - tail);
+        this.firstField   = new int[count];
+        this.lastField    = new int[count];
+        this.words        = new long[count];
+        this.values       = new int[layout.fieldCount()];
+
+        Arrays.fill(firstField, Integer.MAX_VALUE);
+        Arrays.fill(lastField, -1);
+
+        for (int i = 0; i < layout.fieldCount(); ++i) {
+            if (layout.size(i) > 0) {
+                int first = layout.offset(i) / 64;
+                int last  = (layout.offset(i) + layout.size(i) - 1) / 64;
+
+                for (int w = first; w <= last; ++w) {
+                    firstField[w] = Math.min(firstField[w], i);
+                    lastField[w]  = Math.max(lastField[w], i);
+                }
+            }
+        }
+    }
+
+    public ReportLayout layout() {
+        return layout;
+    }
+
+    public int value(int field) {
+        return values[field];
+    }
+
+    public DeltaDecoder reset() {
+        primed = false;
+        return this;
+    }
+
+    public int decode(byte[] buffer, int position, Listener listener) {
+        int changed = 0;
+
+        if (!primed) {
+            for (int w = 0; w < words.length; ++w) {
+                words[w] = word(buffer, position, w);
+            }
+
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = BitField.getInt(buffer, position, layout.offset(i), layout.size(i), layout.isSigned(i));
+                listener.changed(i, layout.usage(i), values[i], values[i]);
+            }
+
+            primed = true;
+            return values.length;
+        }
+
+        int emitted = -1;
+
+        for (int w = 0; w < words.length; ++w) {
+            long word = word(buffer, position, w);
+            long diff = word ^ words[w];
+
+            if (diff != 0) {
+                words[w] = word;
+
+                for (int i = Math.max(firstField[w], emitted + 1); i <= lastField[w]; ++i) {
+                    if ((diff & mask(i, w)) != 0) {
+                        int value = BitField.getInt(buffer, position, layout.offset(i), layout.size(i), layout.isSigned(i));
+
+                        listener.changed(i, layout.usage(i), values[i], value);
+                        values[i] = value;
+                        emitted   = i;
+                        ++changed;
+                    }
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    public int decode(ByteBuffer buffer, int position, Listener listener) {
+        int changed = 0;
+
+        if (!primed) {
+            for (int w = 0; w < words.length; ++w) {
+                words[w] = word(buffer, position, w);
+            }
+
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = BitField.getInt(buffer, position, layout.offset(i), layout.size(i), layout.isSigned(i));
+                listener.changed(i, layout.usage(i), values[i], values[i]);
+            }
+
+            primed = true;
+            return values.length;
+        }
+
+        int emitted = -1;
+
+        for (int w = 0; w < words.length; ++w) {
+            long word = word(buffer, position, w);
+            long diff = word ^ words[w];
+
+            if (diff != 0) {
+                words[w] = word;
+
+                for (int i = Math.max(firstField[w], emitted + 1); i <= lastField[w]; ++i) {
+                    if ((diff & mask(i, w)) != 0) {
+                        int value = BitField.getInt(buffer, position, layout.offset(i), layout.size(i), layout.isSigned(i));
+
+                        listener.changed(i, layout.usage(i), values[i], value);
+                        values[i] = value;
+                        emitted   = i;
+                        ++changed;
+                    }
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    @Override public String toString() {
+        return String.format("[DeltaDecoder: layout=%s primed=%b]", layout, primed);
+    }
+
+    // The bits of a field that fall into a given 64-bit word of the report
+    private long mask(int field, int word) {
+        int lo = Math.max(layout.offset(field) - word * 64, 0);
+        int hi = Math.min(layout.offset(field) + layout.size(field) - word * 64, 64);
+
+        return hi <= lo ? 0 : (-1L >>> (64 - (hi - lo))) << lo;
+    }
+
+    private long word(byte[] buffer, int position, int word) {
+        int index = position + word * 8;
+
+        if (index + 8 <= position + byteLength) {
+            return BitField.getLong(buffer, index);
+        }
+
+        long res = 0;
+
+        for (int i = 0; index + i < position + byteLength; ++i) {
+            res |= (buffer[index + i] & 0xffL) << (i * 8);
+        }
+
+        return res & lastWordMask;
+    }
+
+    private long word(ByteBuffer buffer, int position, int word) {
+        int index = position + word * 8;
+
+        if (index + 8 <= position + byteLength) {
+            return BitField.getLong(buffer, index);
+        }
+
+        long res = 0;
+
+        for (int i = 0; index + i < position + byteLength; ++i) {
+            res |= (buffer.get(index + i) & 0xffL) << (i * 8);
+        }
+
+        return res & lastWordMask;
+    }
+
+    public interface Listener {
+        public void changed(int field, int usage, int previous, int value);
+    }
+}
@@ -0,0 +1,523 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+// Reads input reports from many devices, queues them in per-device rings and decodes them on a shared executor.
+//
+// Only selectable channels (pipes, sockets) are multiplexed on the selector thread. A FileChannel, which is
+// what /dev/hidraw* opens as, cannot be registered with a Selector, so each one still needs a thread blocked
+// in read(). The JDK offers no non-blocking reads of a character device; virtual threads do not help either,
+// since file reads pin their carrier. Pass a ThreadFactory to control how those reader threads are created.
+public final class DeviceReactor
+    implements Closeable {
+    public enum Backpressure {
+        // Discard reports that arrive while the device's ring is full
+        DROP_NEWEST,
+
+        // Stop reading the device until its consumer has drained half the ring
+        PAUSE,
+    }
+
+    public interface Listener {
+        // buffer is only valid during the call; decode it with layout or any decoder built from it. layout is never
+        // null: reports whose layout the descriptor could not compile are counted as unknown and never queued
+        void report(Device device, ReportLayout layout, byte[] buffer, int position);
+
+        void closed(Device device, IOException cause);
+    }
+
+    private static final int QUANTUM = 64;
+
+    private final ExecutorService executor;
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final ThreadFactory readers;
+
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<Device> devices = Collections.newSetFromMap(new ConcurrentHashMap<Device, Boolean>());
+
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean closed;
+
+    public DeviceReactor(ExecutorService executor, int capacity, Backpressure backpressure) {
+        this(executor, capacity, backpressure, new ThreadFactory() {
+            @Override public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "DeviceReactor reader");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // capacity is the number of reports each device's ring holds, and must be a power of two
+    public DeviceReactor(ExecutorService executor, int capacity, Backpressure backpressure, ThreadFactory readers) {
+        if (capacity < 1 || (capacity & capacity - 1) != 0) {
+            throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+        }
+
+        this.executor     = executor;
+        this.capacity     = capacity;
+        this.backpressure = backpressure;
+        this.readers      = readers;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public Backpressure backpressure() {
+        return backpressure;
+    }
+
+    public Collection<Device> devices() {
+        return Collections.unmodifiableSet(devices);
+    }
+
+    // Selectable channels (pipes, sockets) share one selector thread; others, such as a FileChannel
+    // for /dev/hidraw*, get a blocking reader thread each from the reader ThreadFactory
+    public Device register(ReadableByteChannel channel, ReportDescriptor descriptor, Listener listener)
+        throws IOException {
+        if (closed) {
+            throw new IllegalStateException("DeviceReactor is closed");
+        }
+
+        final Device device = new Device(channel, descriptor, listener);
+
+        devices.add(device);
+
+        if (channel instanceof SelectableChannel) {
+            final SelectableChannel selectable = (SelectableChannel) channel;
+
+            selectable.configureBlocking(false);
+
+            invoke(new Runnable() {
+                @Override public void run() {
+                    try {
+                        device.key = selectable.register(selector, SelectionKey.OP_READ, device);
+                    }
+                    catch (IOException ex) {
+                        device.close(ex);
+                    }
+                }
+            });
+        }
+        else {
+            Thread reader = readers.newThread(new Runnable() {
+                @Override public void run() {
+                    device.readBlocking();
+                }
+            });
+
+            if (reader == null) {
+                devices.remove(device);
+                throw new RejectedExecutionException("No reader thread for " + channel);
+            }
+
+            reader.start();
+        }
+
+        return device;
+    }
+
+    @Override public void close()
+        throws IOException {
+        Thread thread;
+
+        synchronized (this) {
+            closed = true;
+            thread = selectorThread;
+
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        for (Device device : devices) {
+            device.close(null);
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override public String toString() {
+        return String.format("[DeviceReactor: devices=%d capacity=%d backpressure=%s]",
+                             devices.size(), capacity, backpressure);
+    }
+
+    private synchronized void invoke(Runnable task)
+        throws IOException {
+        if (selector == null) {
+            selector       = Selector.open();
+            selectorThread = new Thread(new Runnable() {
+                @Override public void run() {
+                    select();
+                }
+            }, "DeviceReactor selector");
+
+            selectorThread.setDaemon(true);
+            selectorThread.start();
+        }
+
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                for (Runnable task = pending.poll(); task != null; task = pending.poll()) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+
+                    keys.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        ((Device) key.attachment()).readSelectable();
+                    }
+                }
+            }
+        }
+        catch (IOException ex) {
+            for (Device device : devices) {
+                if (device.channel instanceof SelectableChannel) {
+                    device.close(ex);
+                }
+            }
+        }
+        finally {
+            try {
+                selector.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    public final class Device {
+        private final ReadableByteChannel channel;
+        private final ReportDescriptor descriptor;
+        private final Listener listener;
+        private final boolean numbered;
+        private final ReportLayout[] layouts = new ReportLayout[256];
+        private final int[] lengths = new int[256];
+        private final ByteBuffer input;
+        private final ReportRing ring;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean notified  = new AtomicBoolean();
+        private final AtomicLong    received  = new AtomicLong();
+        private final AtomicLong    dropped   = new AtomicLong();
+        private final AtomicLong    unknown   = new AtomicLong();
+
+        // Where the bytes of the latest read start in input; earlier bytes are left over from previous reads
+        private int fresh;
+
+        private volatile SelectionKey key;
+        private volatile boolean paused;
+        private volatile boolean open = true;
+        private volatile IOException cause;
+
+        private final Runnable drain = new Runnable() {
+            @Override public void run() {
+                drain();
+            }
+        };
+
+        private Device(ReadableByteChannel channel, ReportDescriptor descriptor, Listener listener) {
+            int longest = 1;
+
+            for (int id = 0; id < 256; ++id) {
+                layouts[id] = descriptor.layout(id, Control.Type.INPUT);
+                lengths[id] = layouts[id] == null ? 0 : descriptor.reportLength(id, Control.Type.INPUT);
+                longest     = Math.max(longest, lengths[id]);
+            }
+
+            this.channel    = channel;
+            this.descriptor = descriptor;
+            this.listener   = listener;
+            this.numbered   = descriptor.isNumbered();
+            this.input      = ByteBuffer.allocate(Math.max(longest * QUANTUM, 4096));
+            this.ring       = new ReportRing(capacity, longest);
+        }
+
+        public ReadableByteChannel channel() {
+            return channel;
+        }
+
+        public ReportDescriptor descriptor() {
+            return descriptor;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+
+        public long received() {
+            return received.get();
+        }
+
+        public long dropped() {
+            return dropped.get();
+        }
+
+        public long unknown() {
+            return unknown.get();
+        }
+
+        public int pending() {
+            return ring.size();
+        }
+
+        public void close() {
+            close(null);
+        }
+
+        @Override public String toString() {
+            return String.format("[Device: channel=%s received=%d dropped=%d unknown=%d pending=%d paused=%b]",
+                                 channel, received(), dropped(), unknown(), pending(), paused);
+        }
+
+        private void close(IOException cause) {
+            synchronized (this) {
+                if (!open) {
+                    return;
+                }
+
+                open = false;
+                notifyAll();
+            }
+
+            devices.remove(this);
+
+            if (key != null) {
+                key.cancel();
+            }
+
+            try {
+                channel.close();
+            }
+            catch (IOException ex) {
+                if (cause == null) {
+                    cause = ex;
+                }
+            }
+
+            this.cause = cause;
+
+            if (!scheduled.get() && ring.size() == 0) {
+                closed();
+            }
+        }
+
+        // Called once, after the last queued report has been delivered
+        private void closed() {
+            if (notified.compareAndSet(false, true)) {
+                listener.closed(this, cause);
+            }
+        }
+
+        // Reads at most one buffer per selector pass, so a chatty device cannot starve the others
+        private void readSelectable() {
+            try {
+                fresh = input.position();
+
+                if (channel.read(input) < 0) {
+                    frame();
+                    close(null);
+                }
+                else if (!frame()) {
+                    key.interestOps(0);
+                }
+            }
+            catch (IOException ex) {
+                close(ex);
+            }
+        }
+
+        private void readBlocking() {
+            try {
+                while (open) {
+                    synchronized (this) {
+                        while (paused && open) {
+                            wait();
+                        }
+                    }
+
+                    if (!open || !frame()) {
+                        continue;
+                    }
+
+                    fresh = input.position();
+
+                    if (channel.read(input) < 0) {
+                        frame();
+                        close(null);
+                    }
+                }
+            }
+            catch (AsynchronousCloseException ex) {
+                close(null);
+            }
+            catch (IOException ex) {
+                close(ex);
+            }
+            catch (InterruptedException ex) {
+                close(null);
+            }
+        }
+
+        // Moves complete reports from the input buffer to the ring; returns false if the ring filled up.
+        //
+        // A report with an unknown ID has no known length, so the rest of the read it arrived in is discarded,
+        // but not the bytes of any other read. On hidraw, where each read returns one report, only that report
+        // is lost; on a pipe or socket, complete reports after it in the same read are lost too.
+        private boolean frame() {
+            Metrics metrics = ReportDescriptor.getMetrics();
+            boolean more = true;
+
+            input.flip();
+
+            while (input.hasRemaining()) {
+                int pos    = input.position();
+                int id     = numbered ? input.get(pos) & 0xff : 0;
+                int length = lengths[id];
+
+                if (length == 0) {
+                    unknown.incrementAndGet();
+
+                    if (metrics.isEnabled()) {
+                        metrics.unknownReport(Control.Type.INPUT, id);
+                    }
+
+                    input.position(pos < fresh ? fresh : input.limit());
+                }
+                else if (input.remaining() < length) {
+                    break;
+                }
+                else if (ring.offer(input, pos, length)) {
+                    received.incrementAndGet();
+                    input.position(pos + length);
+                }
+                else if (backpressure == Backpressure.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    input.position(pos + length);
+                }
+                else {
+                    paused = true;
+
+                    // The consumer may have drained the ring before it could see the flag
+                    if (ring.size() < ring.capacity()) {
+                        paused = false;
+                        continue;
+                    }
+
+                    more = false;
+                    break;
+                }
+            }
+
+            fresh = Math.max(fresh - input.position(), 0);
+            input.compact();
+
+            if (ring.size() != 0) {
+                schedule();
+            }
+
+            return more;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(drain);
+                }
+                catch (RejectedExecutionException ex) {
+                    // Nothing is left to deliver the queued reports
+                    scheduled.set(false);
+                    close(null);
+                    closed();
+                }
+            }
+        }
+
+        // Delivers at most QUANTUM reports, then yields the executor thread to other devices
+        private void drain() {
+            try {
+                for (int i = 0, slot = ring.peek(); i < QUANTUM && slot >= 0; ++i, slot = ring.peek()) {
+                    int offset = ring.offset(slot);
+                    int id     = numbered ? ring.buffer()[offset] & 0xff : 0;
+
+                    try {
+                        listener.report(this, layouts[id], ring.buffer(), offset + (numbered ? 1 : 0));
+                    }
+                    finally {
+                        ring.release();
+                    }
+                }
+            }
+            finally {
+                scheduled.set(false);
+            }
+
+            if (paused && ring.size() <= ring.capacity() / 2) {
+                resume();
+            }
+
+            if (ring.size() != 0) {
+                schedule();
+            }
+            else if (!open) {
+                closed();
+            }
+        }
+
+        private void resume() {
+            synchronized (this) {
+                paused = false;
+                notifyAll();
+            }
+
+            if (key != null) {
+                try {
+                    invoke(new Runnable() {
+                        @Override public void run() {
+                            if (key.isValid() && frame()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        }
+                    });
+                }
+                catch (IOException ex) {
+                    close(ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+public final class KeyStateDecoder {
+    private static final int MAX_KEYS = 1 << 16;
+
+    private final ReportLayout layout;
+
+    // Array controls: reportCount slots, each holding an index into [usageMinimum, usageMaximum] or a usage list
+    private final int[] arrayFirst;
+    private final int[] arraySlots;
+    private final int[] arrayUsage;
+    private final int[][] arrayList;
+    private final int[] arrayLogical;
+    private final int[] arrayWidth;
+    private final int[] arrayWord;
+
+    // Runs of adjacent 1-bit variable fields, such as modifier keys, buttons and NKRO bitmaps
+    private final int[] bitmapFirst;
+    private final int[] bitmapCount;
+    private final int[] bitmapWord;
+
+    // For each state word, the group it belongs to (bitmaps are stored as ~index) and its first bit
+    private final int[] wordGroup;
+    private final int[] wordBit;
+
+    private long[] current;
+    private long[] previous;
+
+    public KeyStateDecoder(ReportLayout layout) {
+        List<int[]> arrays  = new ArrayList<int[]>();
+        List<int[]> bitmaps = new ArrayList<int[]>();
+
+        for (int i = 0; i < layout.fieldCount(); ) {
+            Control control = layout.control(i);
+            int end = i + 1;
+
+            if (layout.isArray(i)) {
+                while (end < layout.fieldCount() && layout.control(end) == control) {
+                    ++end;
+                }
+
+                int[] list  = layout.usageList(i);
+                long  width = Math.min(list != null ? list.length - 1L : (long) layout.usageMaximum(i) - layout.usage(i),
+                                       (long) control.logicalMaximum - control.logicalMinimum) + 1;
+
+                if (width > 0) {
+                    arrays.add(new int[] { i, end - i, (int) Math.min(width, MAX_KEYS) });
+                }
+            }
+            else if (layout.size(i) == 1) {
+                while (end < layout.fieldCount() && layout.control(end) == control &&
+                       layout.offset(end) == layout.offset(i) + end - i) {
+                    ++end;
+                }
+
+                bitmaps.add(new int[] { i, end - i });
+            }
+
+            i = end;
+        }
+
+        int words = 0;
+
+        arrayFirst   = new int[arrays.size()];
+        arraySlots   = new int[arrays.size()];
+        arrayUsage   = new int[arrays.size()];
+        arrayList    = new int[arrays.size()][];
+        arrayLogical = new int[arrays.size()];
+        arrayWidth   = new int[arrays.size()];
+        arrayWord    = new int[arrays.size()];
+
+        for (int g = 0; g < arrays.size(); ++g) {
+            int[] a = arrays.get(g);
+
+            arrayFirst[g]   = a[0];
+            arraySlots[g]   = a[1];
+            arrayUsage[g]   = layout.usage(a[0]);
+            arrayList[g]    = layout.usageList(a[0]);
+            arrayLogical[g] = layout.control(a[0]).logicalMinimum;
+            arrayWidth[g]   = a[2];
+            arrayWord[g]    = words;
+            words += (a[2] + 63) / 64;
+        }
+
+        bitmapFirst = new int[bitmaps.size()];
+        bitmapCount = new int[bitmaps.size()];
+        bitmapWord  = new int[bitmaps.size()];
+
+        for (int g = 0; g < bitmaps.size(); ++g) {
+            int[] b = bitmaps.get(g);
+
+            bitmapFirst[g] = b[0];
+            bitmapCount[g] = b[1];
+            bitmapWord[g]  = words;
+            words += (b[1] + 63) / 64;
+        }
+
+        wordGroup = new int[words];
+        wordBit   = new int[words];
+
+        for (int g = 0; g < arrayWord.length; ++g) {
+            for (int w = 0; w < (arrayWidth[g] + 63) / 64; ++w) {
+                wordGroup[arrayWord[g] + w] = g;
+                wordBit[arrayWord[g] + w]   = w * 64;
+            }
+        }
+
+        for (int g = 0; g < bitmapWord.length; ++g) {
+            for (int w = 0; w < (bitmapCount[g] + 63) / 64; ++w) {
+                wordGroup[bitmapWord[g] + w] = ~g;
+                wordBit[bitmapWord[g] + w]   = w * 64;
+            }
+        }
+
+        this.layout   = layout;
+        this.current  = new long[words];
+        this.previous = new long[words];
+    }
+
+    public ReportLayout layout() {
+        return layout;
+    }
+
+    public KeyStateDecoder reset() {
+        Arrays.fill(current, 0);
+        Arrays.fill(previous, 0);
+        return this;
+    }
+
+    public boolean isPressed(int usage) {
+        for (int g = 0; g < arrayWord.length; ++g) {
+            long index = arrayList[g] != null ? indexOf(arrayList[g], usage) : (long) usage - arrayUsage[g];
+
+            if (index >= 0 && index < arrayWidth[g] && (current[arrayWord[g] + (int) (index >> 6)] & 1L << index) != 0) {
+                return true;
+            }
+        }
+
+        for (int g = 0; g < bitmapWord.length; ++g) {
+            for (int i = 0; i < bitmapCount[g]; ++i) {
+                if (layout.usage(bitmapFirst[g] + i) == usage && (current[bitmapWord[g] + (i >> 6)] & 1L << i) != 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    public int pressed(int[] usages) {
+        int count = 0;
+
+        for (int w = 0; w < current.length && count < usages.length; ++w) {
+            for (long bits = current[w]; bits != 0 && count < usages.length; bits &= bits - 1) {
+                usages[count++] = usage(w, Long.numberOfTrailingZeros(bits));
+            }
+        }
+
+        return count;
+    }
+
+    public int decode(byte[] buffer, int position, Listener listener) {
+        long[] tmp = previous;
+
+        previous = current;
+        current  = tmp;
+
+        for (int g = 0; g < arrayWord.length; ++g) {
+            int end = arrayWord[g] + (arrayWidth[g] + 63) / 64;
+
+            Arrays.fill(current, arrayWord[g], end, 0);
+
+            for (int f = arrayFirst[g]; f < arrayFirst[g] + arraySlots[g]; ++f) {
+                int value = BitField.getInt(buffer, position, layout.offset(f), layout.size(f), layout.isSigned(f));
+
+                if (!press(g, value)) {
+                    System.arraycopy(previous, arrayWord[g], current, arrayWord[g], end - arrayWord[g]);
+                    break;
+                }
+            }
+        }
+
+        for (int g = 0; g < bitmapWord.length; ++g) {
+            int offset = layout.offset(bitmapFirst[g]);
+
+            for (int i = 0; i < bitmapCount[g]; i += 64) {
+                current[bitmapWord[g] + i / 64] = BitField.getLong(buffer, position, offset + i, Math.min(bitmapCount[g] - i, 64), false);
+            }
+        }
+
+        return emit(listener);
+    }
+
+    public int decode(ByteBuffer buffer, int position, Listener listener) {
+        long[] tmp = previous;
+
+        previous = current;
+        current  = tmp;
+
+        for (int g = 0; g < arrayWord.length; ++g) {
+            int end = arrayWord[g] + (arrayWidth[g] + 63) / 64;
+
+            Arrays.fill(current, arrayWord[g], end, 0);
+
+            for (int f = arrayFirst[g]; f < arrayFirst[g] + arraySlots[g]; ++f) {
+                int value = BitField.getInt(buffer, position, layout.offset(f), layout.size(f), layout.isSigned(f));
+
+                if (!press(g, value)) {
+                    System.arraycopy(previous, arrayWord[g], current, arrayWord[g], end - arrayWord[g]);
+                    break;
+                }
+            }
+        }
+
+        for (int g = 0; g < bitmapWord.length; ++g) {
+            int offset = layout.offset(bitmapFirst[g]);
+
+            for (int i = 0; i < bitmapCount[g]; i += 64) {
+                current[bitmapWord[g] + i / 64] = BitField.getLong(buffer, position, offset + i, Math.min(bitmapCount[g] - i, 64), false);
+            }
+        }
+
+        return emit(listener);
+    }
+
+    @Override public String toString() {
+        return String.format("[KeyStateDecoder: layout=%s arrays=%d bitmaps=%d words=%d]",
+                             layout, arrayWord.length, bitmapWord.length, current.length);
+    }
+
+    // Returns false if the slot reports a keyboard phantom state (ErrorRollOver, POSTFail or ErrorUndefined)
+    private boolean press(int group, int value) {
+        long index = (long) value - arrayLogical[group];
+
+        if (index < 0 || index >= arrayWidth[group]) {
+            return true;
+        }
+
+        int usage = arrayUsage(group, (int) index);
+
+        if ((usage & 0xffff) == 0) {
+            return true;
+        }
+        else if (usage >>> 16 == 0x07 && (usage & 0xffff) <= 0x03) {
+            return false;
+        }
+
+        current[arrayWord[group] + (int) (index >> 6)] |= 1L << index;
+        return true;
+    }
+
+    private int emit(Listener listener) {
+        int events = 0;
+
+        for (int w = 0; w < current.length; ++w) {
+            long diff = current[w] ^ previous[w];
+
+            if (diff != 0) {
+                for (long bits = diff & previous[w]; bits != 0; bits &= bits - 1) {
+                    listener.released(usage(w, Long.numberOfTrailingZeros(bits)));
+                    ++events;
+                }
+
+                for (long bits = diff & current[w]; bits != 0; bits &= bits - 1) {
+                    listener.pressed(usage(w, Long.numberOfTrailingZeros(bits)));
+                    ++events;
+                }
+            }
+        }
+
+        return events;
+    }
+
+    private int usage(int word, int bit) {
+        int group = wordGroup[word];
+        int index = wordBit[word] + bit;
+
+        return group >= 0 ? arrayUsage(group, index) : layout.usage(bitmapFirst[~group] + index);
+    }
+
+    private int arrayUsage(int group, int index) {
+        return arrayList[group] != null ? arrayList[group][index] : arrayUsage[group] + index;
+    }
+
+    private static int indexOf(int[] list, int usage) {
+        for (int i = 0; i < list.length; ++i) {
+            if (list[i] == usage) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public interface Listener {
+        public void pressed(int usage);
+        public void released(int usage);
+    }
+}
@@ -0,0 +1,311 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+public final class ParallelDecoder {
+    private static final int MIN_CHUNK = 256;
+
+    private final ReportDescriptor descriptor;
+    private final Control.Type type;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final boolean numbered;
+
+    // Runs chunks on the common ForkJoinPool, with the calling thread decoding one chunk alongside its workers
+    public ParallelDecoder(ReportDescriptor descriptor, Control.Type type) {
+        this(descriptor, type, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism() + 1);
+    }
+
+    public ParallelDecoder(ReportDescriptor descriptor, Control.Type type, ExecutorService executor) {
+        this(descriptor, type, executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelDecoder(ReportDescriptor descriptor, Control.Type type, ExecutorService executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+
+        this.descriptor  = descriptor;
+        this.type        = type;
+        this.executor    = executor;
+        this.parallelism = parallelism;
+        this.numbered    = descriptor.isNumbered();
+    }
+
+    public ReportDescriptor descriptor() {
+        return descriptor;
+    }
+
+    public Control.Type type() {
+        return type;
+    }
+
+    public int parallelism() {
+        return parallelism;
+    }
+
+    // Decodes count back-to-back reports with the same ID into columns, each chunk filling its own rows
+    public int[][] decode(final byte[] buffer, final int offset, int count, int reportID, int[][] columns)
+        throws InterruptedException {
+        Metrics            metrics = ReportDescriptor.getMetrics();
+        long               start   = metrics.isEnabled() ? System.nanoTime() : 0;
+        final ReportLayout layout  = checkedLayout(reportID);
+        final int[][]      cols    = columns(layout, count, columns);
+        final int          prefix  = numbered ? 1 : 0;
+        final int          stride  = prefix + layout.byteLength();
+        List<Runnable>     tasks   = new ArrayList<Runnable>();
+
+        for (int row = 0, chunk = chunkSize(count); row < count; row += chunk) {
+            final int first = row;
+            final int rows  = Math.min(chunk, count - row);
+
+            tasks.add(new Runnable() {
+                @Override public void run() {
+                    for (int field = 0; field < cols.length; ++field) {
+                        layout.decodeColumn(field, buffer, offset + prefix + first * stride, stride, rows, cols[field], first);
+                    }
+                }
+            });
+        }
+
+        run(tasks);
+
+        if (metrics.isEnabled()) {
+            metrics.decoded(type, reportID, count);
+            metrics.batch(type, count, count * stride, System.nanoTime() - start);
+        }
+
+        return cols;
+    }
+
+    public int[][] decode(final ByteBuffer buffer, final int offset, int count, int reportID, int[][] columns)
+        throws InterruptedException {
+        Metrics            metrics = ReportDescriptor.getMetrics();
+        long               start   = metrics.isEnabled() ? System.nanoTime() : 0;
+        final ReportLayout layout  = checkedLayout(reportID);
+        final int[][]      cols    = columns(layout, count, columns);
+        final int          prefix  = numbered ? 1 : 0;
+        final int          stride  = prefix + layout.byteLength();
+        List<Runnable>     tasks   = new ArrayList<Runnable>();
+
+        for (int row = 0, chunk = chunkSize(count); row < count; row += chunk) {
+            final int first = row;
+            final int rows  = Math.min(chunk, count - row);
+
+            tasks.add(new Runnable() {
+                @Override public void run() {
+                    for (int field = 0; field < cols.length; ++field) {
+                        layout.decodeColumn(field, buffer, offset + prefix + first * stride, stride, rows, cols[field], first);
+                    }
+                }
+            });
+        }
+
+        run(tasks);
+
+        if (metrics.isEnabled()) {
+            metrics.decoded(type, reportID, count);
+            metrics.batch(type, count, count * stride, System.nanoTime() - start);
+        }
+
+        return cols;
+    }
+
+    // Scans a stream of mixed reports sequentially, then decodes disjoint row ranges of result concurrently
+    public int decode(final byte[] buffer, int offset, int length, final ReportBatch result)
+        throws InterruptedException {
+        Metrics metrics = ReportDescriptor.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int consumed = result.scan(buffer, offset, length);
+        int chunk    = chunkSize(totalScanned(result));
+        List<Runnable> tasks = new ArrayList<Runnable>();
+
+        for (int id = 0; id < 256; ++id) {
+            for (int row = 0, rows = result.scanned(id); row < rows; row += chunk) {
+                final int reportID = id;
+                final int from     = row;
+                final int to       = Math.min(row + chunk, rows);
+
+                tasks.add(new Runnable() {
+                    @Override public void run() {
+                        result.decodeRows(buffer, reportID, from, to);
+                    }
+                });
+            }
+        }
+
+        run(tasks);
+
+        int rows = result.commit();
+
+        if (metrics.isEnabled()) {
+            metrics.batch(type, rows, consumed, System.nanoTime() - start);
+        }
+
+        return consumed;
+    }
+
+    public int decode(final ByteBuffer buffer, int offset, int length, final ReportBatch result)
+        throws InterruptedException {
+        Metrics metrics = ReportDescriptor.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int consumed = result.scan(buffer, offset, length);
+        int chunk    = chunkSize(totalScanned(result));
+        List<Runnable> tasks = new ArrayList<Runnable>();
+
+        for (int id = 0; id < 256; ++id) {
+            for (int row = 0, rows = result.scanned(id); row < rows; row += chunk) {
+                final int reportID = id;
+                final int from     = row;
+                final int to       = Math.min(row + chunk, rows);
+
+                tasks.add(new Runnable() {
+                    @Override public void run() {
+                        result.decodeRows(buffer, reportID, from, to);
+                    }
+                });
+            }
+        }
+
+        run(tasks);
+
+        int rows = result.commit();
+
+        if (metrics.isEnabled()) {
+            metrics.batch(type, rows, consumed, System.nanoTime() - start);
+        }
+
+        return consumed;
+    }
+
+    @Override public String toString() {
+        return String.format("[ParallelDecoder: type=%s parallelism=%d]", type, parallelism);
+    }
+
+    private ReportLayout checkedLayout(int reportID) {
+        ReportLayout layout = descriptor.layout(reportID, type);
+
+        if (layout == null) {
+            throw new NoSuchElementException("No " + type + " report with ID " + reportID);
+        }
+
+        return layout;
+    }
+
+    private int[][] columns(ReportLayout layout, int count, int[][] columns) {
+        if (columns == null) {
+            columns = new int[layout.fieldCount()][count];
+        }
+        else if (columns.length < layout.fieldCount()) {
+            throw new IllegalArgumentException("Expected " + layout.fieldCount() + " columns, got " + columns.length);
+        }
+
+        return columns;
+    }
+
+    private int chunkSize(int count) {
+        // A few chunks per worker evens out scheduling hiccups
+        return Math.max(MIN_CHUNK, (count + parallelism * 4 - 1) / (parallelism * 4));
+    }
+
+    private static int totalScanned(ReportBatch batch) {
+        int total = 0;
+
+        for (int id = 0; id < 256; ++id) {
+            total += batch.scanned(id);
+        }
+
+        return total;
+    }
+
+    // Runs the tasks and waits for all of them, even after one has failed, since they write into the
+    // caller's columns or batch; tasks that have not started yet are skipped after a failure
+    private void run(List<Runnable> tasks)
+        throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        AtomicBoolean   failed  = new AtomicBoolean();
+        Throwable       failure = null;
+        boolean         interrupted = false;
+
+        try {
+            // The calling thread decodes the last chunk itself instead of just waiting
+            for (int i = 0; i < tasks.size() - 1; ++i) {
+                futures.add(executor.submit(guard(tasks.get(i), failed)));
+            }
+
+            if (!tasks.isEmpty()) {
+                guard(tasks.get(tasks.size() - 1), failed).run();
+            }
+        }
+        catch (RuntimeException ex) {
+            failure = ex;
+            failed.set(true);
+        }
+        catch (Error ex) {
+            failure = ex;
+            failed.set(true);
+        }
+
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                }
+                catch (ExecutionException ex) {
+                    failure = failure != null ? failure : ex.getCause();
+                    break;
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                    failed.set(true);
+                }
+            }
+        }
+
+        if (interrupted) {
+            if (failure == null) {
+                throw new InterruptedException();
+            }
+
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    private static Runnable guard(final Runnable task, final AtomicBoolean failed) {
+        return new Runnable() {
+            @Override public void run() {
+                boolean done = false;
+
+                if (failed.get()) {
+                    return;
+                }
+
+                try {
+                    task.run();
+                    done = true;
+                }
+                finally {
+                    if (!done) {
+                        failed.set(true);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,229 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+
+public final class ReportEncoder {
+    private final ReportLayout layout;
+    private final boolean clamp;
+    private final byte[] template;
+    private final int prefix;
+
+    private final long[] minima;
+    private final long[] maxima;
+    private final int[] sortedUsages;
+    private final int[] sortedFields;
+
+    public ReportEncoder(ReportLayout layout) {
+        this(layout, false);
+    }
+
+    public ReportEncoder(ReportLayout layout, boolean clamp) {
+        this(layout, null, clamp);
+    }
+
+    public ReportEncoder(ReportLayout layout, byte[] template, boolean clamp) {
+        if (layout.type() == Control.Type.INPUT) {
+            throw new IllegalArgumentException("Cannot encode " + layout);
+        }
+
+        this.layout   = layout;
+        this.clamp    = clamp;
+        this.prefix   = layout.isNumbered() ? 1 : 0;
+        this.template = new byte[prefix + layout.byteLength()];
+
+        if (template != null) {
+            if (template.length != this.template.length) {
+                throw new IllegalArgumentException("Template length " + template.length + " does not match " + layout);
+            }
+
+            System.arraycopy(template, 0, this.template, 0, template.length);
+        }
+
+        if (prefix != 0) {
+            this.template[0] = (byte) layout.reportID();
+        }
+
+        int count = layout.fieldCount();
+        long[] usages = new long[count];
+
+        minima       = new long[count];
+        maxima       = new long[count];
+        sortedUsages = new int[count];
+        sortedFields = new int[count];
+
+        for (int i = 0; i < count; ++i) {
+            Control control = layout.control(i);
+
+            int size = layout.size(i);
+
+            if (control.logicalMinimum <= control.logicalMaximum) {
+                minima[i] = control.logicalMinimum;
+                maxima[i] = control.logicalMaximum;
+            }
+            else if (size >= 64) {
+                minima[i] = layout.isSigned(i) ? Long.MIN_VALUE : 0;
+                maxima[i] = Long.MAX_VALUE;
+            }
+            else {
+                // An inverted range, usually an unsigned maximum written as a negative number, is clamped to
+                // what the field can hold
+                minima[i] = layout.isSigned(i) ? -1L << (size - 1) : 0;
+                maxima[i] = layout.isSigned(i) ? ~(-1L << (size - 1)) : ~(-1L << size);
+            }
+
+            // Sort by usage, then by field index, so setUsage() picks the first matching field
+            usages[i] = (long) layout.usage(i) << 32 | i;
+        }
+
+        Arrays.sort(usages);
+
+        for (int i = 0; i < count; ++i) {
+            sortedUsages[i] = (int) (usages[i] >> 32);
+            sortedFields[i] = (int) usages[i];
+        }
+    }
+
+    public ReportLayout layout() {
+        return layout;
+    }
+
+    public boolean isClamping() {
+        return clamp;
+    }
+
+    public int length() {
+        return template.length;
+    }
+
+    public byte[] template() {
+        return template.clone();
+    }
+
+    public int field(int usage) {
+        int lo = 0;
+        int hi = sortedUsages.length;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (sortedUsages[mid] < usage) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        return lo < sortedUsages.length && sortedUsages[lo] == usage ? sortedFields[lo] : -1;
+    }
+
+    public int begin(byte[] buffer, int offset) {
+        System.arraycopy(template, 0, buffer, offset, template.length);
+
+        return offset + prefix;
+    }
+
+    public int begin(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < template.length; ++i) {
+            buffer.put(offset + i, template[i]);
+        }
+
+        return offset + prefix;
+    }
+
+    // Fields wider than 32 bits get the value sign-extended; use the long overloads for their full range
+    public ReportEncoder set(byte[] buffer, int position, int field, int value) {
+        return set(buffer, position, field, (long) value);
+    }
+
+    public ReportEncoder set(ByteBuffer buffer, int position, int field, int value) {
+        return set(buffer, position, field, (long) value);
+    }
+
+    public ReportEncoder set(byte[] buffer, int position, int field, long value) {
+        BitField.setLong(buffer, position, layout.offset(field), layout.size(field), clamp(field, value));
+        return this;
+    }
+
+    public ReportEncoder set(ByteBuffer buffer, int position, int field, long value) {
+        BitField.setLong(buffer, position, layout.offset(field), layout.size(field), clamp(field, value));
+        return this;
+    }
+
+    public ReportEncoder setUsage(byte[] buffer, int position, int usage, int value) {
+        return set(buffer, position, checkedField(usage), value);
+    }
+
+    public ReportEncoder setUsage(ByteBuffer buffer, int position, int usage, int value) {
+        return set(buffer, position, checkedField(usage), value);
+    }
+
+    public ReportEncoder setUsage(byte[] buffer, int position, int usage, long value) {
+        return set(buffer, position, checkedField(usage), value);
+    }
+
+    public ReportEncoder setUsage(ByteBuffer buffer, int position, int usage, long value) {
+        return set(buffer, position, checkedField(usage), value);
+    }
+
+    public ReportEncoder encode(byte[] buffer, int offset, int[] values) {
+        int position = begin(buffer, offset);
+
+        for (int i = 0; i < values.length; ++i) {
+            set(buffer, position, i, values[i]);
+        }
+
+        return this;
+    }
+
+    public ReportEncoder encode(ByteBuffer buffer, int offset, int[] values) {
+        int position = begin(buffer, offset);
+
+        for (int i = 0; i < values.length; ++i) {
+            set(buffer, position, i, values[i]);
+        }
+
+        return this;
+    }
+
+    public ReportEncoder encode(byte[] buffer, int offset, long[] values) {
+        int position = begin(buffer, offset);
+
+        for (int i = 0; i < values.length; ++i) {
+            set(buffer, position, i, values[i]);
+        }
+
+        return this;
+    }
+
+    public ReportEncoder encode(ByteBuffer buffer, int offset, long[] values) {
+        int position = begin(buffer, offset);
+
+        for (int i = 0; i < values.length; ++i) {
+            set(buffer, position, i, values[i]);
+        }
+
+        return this;
+    }
+
+    @Override public String toString() {
+        return String.format("[ReportEncoder: layout=%s clamp=%b length=%d]", layout, clamp, template.length);
+    }
+
+    private long clamp(int field, long value) {
+        return clamp ? Math.max(minima[field], Math.min(maxima[field], value)) : value;
+    }
+
+    private int checkedField(int usage) {
+        int field = field(usage);
+
+        if (field < 0) {
+            throw new NoSuchElementException(String.format("No field with usage %08x in %s", usage, layout));
+        }
+
+        return field;
+    }
+}
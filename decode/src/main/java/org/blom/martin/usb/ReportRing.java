@@ -0,0 +1,76 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+// Bounded single-producer, single-consumer queue of raw reports, stored in fixed-size slots of one array.
+// The capacity must be a power of two, so that a slot index is a mask of the sequence number.
+final class ReportRing {
+    private final byte[] slots;
+    private final int[] lengths;
+    private final int slotSize;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    ReportRing(int capacity, int slotSize) {
+        if (capacity < 1 || (capacity & capacity - 1) != 0) {
+            throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+        }
+
+        this.slots    = new byte[capacity * slotSize];
+        this.lengths  = new int[capacity];
+        this.slotSize = slotSize;
+        this.mask     = capacity - 1;
+    }
+
+    int capacity() {
+        return lengths.length;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    boolean offer(ByteBuffer buffer, int position, int length) {
+        long t = tail.get();
+
+        if (t - head.get() == lengths.length) {
+            return false;
+        }
+
+        int slot = (int) t & mask;
+
+        for (int i = 0; i < length; ++i) {
+            slots[slot * slotSize + i] = buffer.get(position + i);
+        }
+
+        lengths[slot] = length;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Returns the next slot to consume, or -1 if the ring is empty
+    int peek() {
+        long h = head.get();
+
+        return h == tail.get() ? -1 : (int) h & mask;
+    }
+
+    byte[] buffer() {
+        return slots;
+    }
+
+    int offset(int slot) {
+        return slot * slotSize;
+    }
+
+    int length(int slot) {
+        return lengths[slot];
+    }
+
+    void release() {
+        head.lazySet(head.get() + 1);
+    }
+}
@@ -0,0 +1,118 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+import org.junit.rules.*;
+
+import static org.junit.Assert.*;
+
+public class CaptureFileTest {
+    private static final String MOUSE = "05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void roundTrip()
+        throws Exception {
+        File   file       = folder.newFile("mouse.hidcap");
+        byte[] descriptor = ReportDescriptor.fromHexString(MOUSE);
+        Random random     = new Random(1);
+        final List<byte[]> expected = new ArrayList<byte[]>();
+
+        CaptureWriter writer = new CaptureWriter(file, descriptor, 7);
+
+        for (int i = 0; i < 100; ++i) {
+            byte[] report = new byte[3];
+
+            random.nextBytes(report);
+            expected.add(report);
+
+            if (i % 3 == 0) {
+                writer.write(i, Control.Type.INPUT, 0, report, 0, report.length);
+            }
+            else {
+                // Heap and direct buffers, with the report in the middle of the buffer
+                ByteBuffer buffer = i % 3 == 1 ? ByteBuffer.allocate(8) : ByteBuffer.allocateDirect(8);
+
+                buffer.position(2);
+                buffer.put(report).flip().position(2);
+                writer.write(i, Control.Type.INPUT, 0, buffer);
+
+                assertEquals(2, buffer.position());
+                assertEquals(5, buffer.limit());
+            }
+        }
+
+        writer.close();
+
+        CaptureFile capture = new CaptureFile(file);
+
+        try {
+            assertEquals(100, capture.records());
+            assertEquals(15, capture.blocks());
+
+            long count = capture.replay(0, Long.MAX_VALUE, new CaptureFile.Listener() {
+                @Override public boolean report(long timestamp, Control.Type type, int reportID, ByteBuffer buffer, int position, int length) {
+                    byte[] report = new byte[length];
+
+                    for (int i = 0; i < length; ++i) {
+                        report[i] = buffer.get(position + i);
+                    }
+
+                    assertArrayEquals("record " + timestamp, expected.get((int) timestamp), report);
+                    return true;
+                }
+            });
+
+            assertEquals(100, count);
+        }
+        finally {
+            capture.close();
+        }
+    }
+
+    @Test public void corruptType()
+        throws Exception {
+        File   file       = folder.newFile("corrupt.hidcap");
+        byte[] descriptor = ReportDescriptor.fromHexString(MOUSE);
+
+        CaptureWriter writer = new CaptureWriter(file, descriptor);
+
+        writer.write(1, Control.Type.INPUT, 0, new byte[3], 0, 3);
+        writer.write(2, Control.Type.INPUT, 0, new byte[3], 0, 3);
+        writer.close();
+
+        // Type byte of the second record
+        long offset = 12 + descriptor.length + 15;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.seek(offset + 8);
+            raf.write(0x7f);
+        }
+        finally {
+            raf.close();
+        }
+
+        CaptureFile capture = new CaptureFile(file);
+
+        try {
+            capture.replay(0, Long.MAX_VALUE, new CaptureFile.Listener() {
+                @Override public boolean report(long timestamp, Control.Type type, int reportID, ByteBuffer buffer, int position, int length) {
+                    return true;
+                }
+            });
+
+            fail("Corrupt type byte not detected");
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("offset " + offset));
+        }
+        finally {
+            capture.close();
+        }
+    }
+}
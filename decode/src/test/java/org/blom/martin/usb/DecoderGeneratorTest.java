@@ -0,0 +1,49 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class DecoderGeneratorTest {
+    private static final String MOUSE = "05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0";
+
+    // A 40-bit FEATURE field, which the generator does not handle
+    private static final String WIDE  = "0600FF0901A1010902150027FFFFFF7F75289501B102C0";
+
+    @Test public void matchesLayout()
+        throws Exception {
+        ReportLayout  layout    = new ReportDescriptor(ReportDescriptor.fromHexString(MOUSE)).layout(0, Control.Type.INPUT);
+        ReportDecoder generated = DecoderGenerator.specialize(layout);
+        Random        random    = new Random(1);
+        byte[]        report    = new byte[layout.byteLength() + 1];
+
+        assertNotSame(layout, generated);
+
+        for (int n = 0; n < 100; ++n) {
+            random.nextBytes(report);
+
+            assertArrayEquals(layout.decode(report, 1, new int[layout.fieldCount()]),
+                              generated.decode(report, 1, new int[layout.fieldCount()]));
+        }
+    }
+
+    @Test public void cachedPerLayout()
+        throws Exception {
+        ReportDescriptor hrd    = new ReportDescriptor(ReportDescriptor.fromHexString(MOUSE));
+        ReportLayout     layout = hrd.layout(0, Control.Type.INPUT);
+
+        assertSame(DecoderGenerator.specialize(layout), DecoderGenerator.specialize(layout));
+        assertNotSame(DecoderGenerator.specialize(layout),
+                      DecoderGenerator.specialize(hrd.compile(0, Control.Type.INPUT)));
+    }
+
+    @Test public void wideField()
+        throws Exception {
+        ReportLayout layout = new ReportDescriptor(ReportDescriptor.fromHexString(WIDE)).layout(0, Control.Type.FEATURE);
+
+        assertSame(layout, DecoderGenerator.specialize(layout));
+    }
+}
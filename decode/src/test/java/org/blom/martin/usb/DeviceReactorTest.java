@@ -0,0 +1,346 @@
+package org.blom.martin.usb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import static org.junit.Assert.*;
+
+public class DeviceReactorTest {
+    private static final String MOUSE  = "05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0";
+
+    // One-byte X in report 1; report 2 has no layout, so its ID is unknown
+    private static final String BROKEN = "05010902A10185017508950109308102" + "8502A901A9008102C0";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ExecutorService executor;
+    private DeviceReactor reactor;
+    private Pipe pipe;
+
+    @Before public void setUp()
+        throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        pipe     = Pipe.open();
+    }
+
+    @After public void tearDown()
+        throws Exception {
+        release.countDown();
+
+        if (reactor != null) {
+            reactor.close();
+        }
+
+        pipe.sink().close();
+        executor.shutdownNow();
+    }
+
+    @Test public void dropNewest()
+        throws Exception {
+        Recorder recorder = new Recorder();
+
+        reactor = new DeviceReactor(executor, 4, DeviceReactor.Backpressure.DROP_NEWEST);
+        hold();
+
+        final DeviceReactor.Device device = reactor.register(pipe.source(), mouse(), recorder);
+
+        write(reports(10, 3));
+        waitFor(new Callable<Boolean>() {
+            @Override public Boolean call() {
+                return device.received() + device.dropped() == 10;
+            }
+        });
+
+        assertEquals(4, device.received());
+        assertEquals(6, device.dropped());
+        assertEquals(4, device.pending());
+
+        release.countDown();
+        pipe.sink().close();
+        recorder.awaitClosed();
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), recorder.reports);
+    }
+
+    @Test public void pause()
+        throws Exception {
+        Recorder recorder = new Recorder();
+
+        reactor = new DeviceReactor(executor, 4, DeviceReactor.Backpressure.PAUSE);
+        hold();
+
+        final DeviceReactor.Device device = reactor.register(pipe.source(), mouse(), recorder);
+
+        write(reports(10, 3));
+        waitFor(new Callable<Boolean>() {
+            @Override public Boolean call() {
+                return device.isPaused();
+            }
+        });
+
+        assertEquals(4, device.received());
+        assertEquals(0, device.dropped());
+
+        release.countDown();
+        waitFor(new Callable<Boolean>() {
+            @Override public Boolean call() {
+                return device.received() == 10;
+            }
+        });
+
+        pipe.sink().close();
+        recorder.awaitClosed();
+
+        assertFalse(device.isPaused());
+        assertEquals(0, device.dropped());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), recorder.reports);
+    }
+
+    @Test public void fileChannel()
+        throws Exception {
+        File file = folder.newFile("mouse.bin");
+        final AtomicInteger threads = new AtomicInteger();
+        Recorder recorder = new Recorder();
+
+        Files.write(file.toPath(), reports(100, 3));
+
+        reactor = new DeviceReactor(executor, 128, DeviceReactor.Backpressure.PAUSE, new ThreadFactory() {
+            @Override public Thread newThread(Runnable task) {
+                threads.incrementAndGet();
+                return new Thread(task, "test reader");
+            }
+        });
+
+        DeviceReactor.Device device = reactor.register(FileChannel.open(file.toPath()), mouse(), recorder);
+
+        recorder.awaitClosed();
+
+        assertEquals(1, threads.get());
+        assertEquals(100, device.received());
+        assertEquals(100, recorder.reports.size());
+        assertFalse(device.isOpen());
+        assertNull(recorder.cause);
+
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, (int) recorder.reports.get(i));
+        }
+    }
+
+    @Test public void closedAfterLastReport()
+        throws Exception {
+        Recorder recorder = new Recorder();
+
+        reactor = new DeviceReactor(executor, 8, DeviceReactor.Backpressure.PAUSE);
+        hold();
+
+        final DeviceReactor.Device device = reactor.register(pipe.source(), mouse(), recorder);
+
+        write(reports(3, 3));
+        pipe.sink().close();
+        waitFor(new Callable<Boolean>() {
+            @Override public Boolean call() {
+                return !device.isOpen();
+            }
+        });
+
+        device.close();
+        reactor.close();
+
+        assertEquals(0, recorder.closed.get());
+        assertEquals(3, device.pending());
+
+        release.countDown();
+        recorder.awaitClosed();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, recorder.closed.get());
+        assertEquals(Arrays.asList(0, 1, 2, -1), recorder.events);
+    }
+
+    // Nothing is left to deliver the queued reports, so the device closes at once
+    @Test public void rejectedExecution()
+        throws Exception {
+        Recorder recorder = new Recorder();
+
+        executor.shutdown();
+        reactor = new DeviceReactor(executor, 8, DeviceReactor.Backpressure.DROP_NEWEST);
+
+        DeviceReactor.Device device = reactor.register(pipe.source(), mouse(), recorder);
+
+        write(reports(1, 3));
+        recorder.awaitClosed();
+
+        assertEquals(1, recorder.closed.get());
+        assertTrue(recorder.reports.isEmpty());
+        assertFalse(device.isOpen());
+        assertFalse(reactor.devices().contains(device));
+    }
+
+    // The unknown report costs the rest of its own read, but not the next read
+    @Test public void unknownReport()
+        throws Exception {
+        Statistics statistics = new Statistics();
+        Recorder   recorder   = new Recorder();
+
+        ReportDescriptor.setMetrics(statistics);
+
+        try {
+            reactor = new DeviceReactor(executor, 8, DeviceReactor.Backpressure.DROP_NEWEST);
+
+            final DeviceReactor.Device device = reactor.register(pipe.source(),
+                                                                 new ReportDescriptor(ReportDescriptor.fromHexString(BROKEN)),
+                                                                 recorder);
+
+            write(new byte[] { 1, 0, 2, 0, 1, 1 });
+            waitFor(new Callable<Boolean>() {
+                @Override public Boolean call() {
+                    return device.unknown() == 1;
+                }
+            });
+
+            write(new byte[] { 1, 2 });
+            waitFor(new Callable<Boolean>() {
+                @Override public Boolean call() {
+                    return device.received() == 2;
+                }
+            });
+
+            pipe.sink().close();
+            recorder.awaitClosed();
+
+            assertEquals(Arrays.asList(0, 2), recorder.reports);
+            assertEquals(1, statistics.getUnknownReports());
+        }
+        finally {
+            ReportDescriptor.setMetrics(null);
+        }
+    }
+
+    // Fills the ring, then wraps around after two releases
+    @Test public void ring() {
+        ReportRing ring   = new ReportRing(4, 3);
+        ByteBuffer buffer = ByteBuffer.wrap(reports(6, 3));
+
+        assertEquals(-1, ring.peek());
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.offer(buffer, i * 3, 3));
+        }
+
+        assertFalse(ring.offer(buffer, 12, 3));
+
+        ring.release();
+        ring.release();
+
+        assertTrue(ring.offer(buffer, 12, 3));
+        assertTrue(ring.offer(buffer, 15, 3));
+        assertEquals(4, ring.size());
+
+        for (int i = 2; i < 6; ++i) {
+            int slot = ring.peek();
+
+            assertEquals(i, ring.buffer()[ring.offset(slot)]);
+            assertEquals(3, ring.length(slot));
+            ring.release();
+        }
+
+        assertEquals(-1, ring.peek());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void ringCapacity() {
+        new ReportRing(6, 3);
+    }
+
+    // Blocks the executor until release is counted down
+    private void hold() {
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private void write(byte[] bytes)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        while (buffer.hasRemaining()) {
+            pipe.sink().write(buffer);
+        }
+    }
+
+    private static ReportDescriptor mouse()
+        throws IOException {
+        return new ReportDescriptor(ReportDescriptor.fromHexString(MOUSE));
+    }
+
+    // count reports of length bytes, each starting with its sequence number
+    private static byte[] reports(int count, int length) {
+        byte[] bytes = new byte[count * length];
+
+        for (int i = 0; i < count; ++i) {
+            bytes[i * length] = (byte) i;
+        }
+
+        return bytes;
+    }
+
+    private static void waitFor(Callable<Boolean> condition)
+        throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (!condition.call()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out");
+            }
+
+            Thread.sleep(1);
+        }
+    }
+
+    // Records the first byte of each report, and -1 for closed()
+    private static final class Recorder
+        implements DeviceReactor.Listener {
+        final List<Integer>  reports = new CopyOnWriteArrayList<Integer>();
+        final List<Integer>  events  = new CopyOnWriteArrayList<Integer>();
+        final AtomicInteger  closed  = new AtomicInteger();
+        final CountDownLatch latch   = new CountDownLatch(1);
+
+        volatile IOException cause;
+
+        @Override public void report(DeviceReactor.Device device, ReportLayout layout, byte[] buffer, int position) {
+            assertNotNull(layout);
+
+            reports.add((int) buffer[position]);
+            events.add((int) buffer[position]);
+        }
+
+        @Override public void closed(DeviceReactor.Device device, IOException cause) {
+            this.cause = cause;
+            events.add(-1);
+            closed.incrementAndGet();
+            latch.countDown();
+        }
+
+        void awaitClosed()
+            throws InterruptedException {
+            assertTrue("Device was not closed", latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.blom.martin.usb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelDecoderTest {
+    private static final String MOUSE = "05010902A1010901A100050919012903150025019503750181029501750581010501093009311581257F750895028106C0C0";
+
+    private ExecutorService executor;
+    private ReportDescriptor hrd;
+    private ReportLayout layout;
+    private byte[] reports;
+
+    @Before public void setUp()
+        throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        hrd      = new ReportDescriptor(ReportDescriptor.fromHexString(MOUSE));
+        layout   = hrd.layout(0, Control.Type.INPUT);
+        reports  = new byte[5000 * layout.byteLength()];
+
+        new Random(1).nextBytes(reports);
+    }
+
+    @After public void tearDown() {
+        executor.shutdownNow();
+        ReportDescriptor.setMetrics(null);
+    }
+
+    @Test public void matchesSequential()
+        throws Exception {
+        Statistics statistics = new Statistics();
+
+        ReportDescriptor.setMetrics(statistics);
+
+        int[][] columns = new ParallelDecoder(hrd, Control.Type.INPUT, executor, 4).decode(reports, 0, 5000, 0, null);
+        int[]   values  = new int[layout.fieldCount()];
+
+        assertEquals(5000, statistics.decoded(Control.Type.INPUT, 0));
+        assertEquals(1, statistics.getBatchesDecoded());
+
+        for (int row = 0; row < 5000; ++row) {
+            layout.decode(reports, row * layout.byteLength(), values);
+
+            for (int field = 0; field < values.length; ++field) {
+                assertEquals(values[field], columns[field][row]);
+            }
+        }
+
+        // Plus one for each report decoded by the loop above
+        assertEquals(10000, statistics.decoded(Control.Type.INPUT, 0));
+    }
+
+    @Test public void commonPool()
+        throws Exception {
+        ParallelDecoder decoder = new ParallelDecoder(hrd, Control.Type.INPUT);
+        int[][] columns = decoder.decode(reports, 0, 5000, 0, null);
+        int[]   values  = new int[layout.fieldCount()];
+
+        assertEquals(ForkJoinPool.getCommonPoolParallelism() + 1, decoder.parallelism());
+
+        for (int row = 0; row < 5000; row += 499) {
+            layout.decode(reports, row * layout.byteLength(), values);
+
+            for (int field = 0; field < values.length; ++field) {
+                assertEquals(values[field], columns[field][row]);
+            }
+        }
+    }
+
+    // The chunk decoded by the calling thread runs past the end of the buffer, while the others are held back
+    @Test public void failureWaitsForAllChunks()
+        throws Exception {
+        ExecutorService slow = new ThreadPoolExecutor(3, 3, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override protected void beforeExecute(Thread thread, Runnable task) {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ex) {
+                    thread.interrupt();
+                }
+            }
+        };
+
+        int[][] columns = new int[layout.fieldCount()][6000];
+
+        try {
+            new ParallelDecoder(hrd, Control.Type.INPUT, slow, 4).decode(reports, 0, 6000, 0, columns);
+            fail("Decoding past the end of the buffer did not fail");
+        }
+        catch (ArrayIndexOutOfBoundsException expected) {
+        }
+
+        int[][] snapshot = new int[columns.length][];
+
+        for (int field = 0; field < columns.length; ++field) {
+            snapshot[field] = columns[field].clone();
+        }
+
+        Thread.sleep(200);
+        slow.shutdown();
+
+        assertTrue(slow.awaitTermination(1, TimeUnit.SECONDS));
+
+        for (int field = 0; field < columns.length; ++field) {
+            assertArrayEquals("field " + field, snapshot[field], columns[field]);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.blom.martin.usb;
+
+import java.nio.*;
+import java.util.*;
+
+import org.blom.martin.usb.ReportDescriptor.Control;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+// Encodes reports and decodes them again through ReportLayout
+public class ReportEncoderTest {
+    private static final String KEYBOARD = "05010906A101050719E029E71500250175019508810295017508810195057501050819012905910295017503910195067508150025650507190029658100C0";
+
+    // LED usage 1 in OUTPUT report 1 and FEATURE report 2
+    private static final String NUMBERED = "05010906A10185010508090175089501910285020901B102C0";
+
+    // An OUTPUT control before the first Report ID item, so it has ID 0 in a numbered descriptor
+    private static final String ID_ZERO  = "05010906A10105080901750895019102" + "85020901B102C0";
+
+    // A 40-bit FEATURE field with logical range 0..0x7fffffff
+    private static final String WIDE     = "0600FF0901A1010902150027FFFFFF7F75289501B102C0";
+
+    // Logical Maximum 255 written as the one-byte -1, so the range is 0..-1
+    private static final String INVERTED = "0600FF0901A1010903150025FF750895019102C0";
+
+    private final Random random = new Random(1);
+
+    @Test public void unnumbered()
+        throws Exception {
+        ReportLayout  layout  = layout(KEYBOARD, 0, Control.Type.OUTPUT);
+        ReportEncoder encoder = new ReportEncoder(layout);
+        int[]         values  = new int[layout.fieldCount()];
+        byte[]        report  = new byte[encoder.length()];
+
+        assertFalse(layout.isNumbered());
+        assertEquals(layout.byteLength(), encoder.length());
+
+        for (int n = 0; n < 100; ++n) {
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = random.nextInt(2);
+            }
+
+            encoder.encode(report, 0, values);
+
+            assertArrayEquals(values, layout.decode(report, 0, new int[values.length]));
+        }
+    }
+
+    @Test public void numbered()
+        throws Exception {
+        for (Control.Type type : new Control.Type[] { Control.Type.OUTPUT, Control.Type.FEATURE }) {
+            int           id      = type == Control.Type.OUTPUT ? 1 : 2;
+            ReportLayout  layout  = layout(NUMBERED, id, type);
+            ReportEncoder encoder = new ReportEncoder(layout);
+            ByteBuffer    report  = ByteBuffer.allocateDirect(encoder.length() + 2);
+
+            assertEquals(2, encoder.length());
+
+            encoder.encode(report, 2, new int[] { 0x5a });
+
+            assertEquals(id, report.get(2));
+            assertEquals(0x5a, layout.decode(report, 3, new int[1])[0]);
+        }
+    }
+
+    // The ID prefix follows the descriptor, not the report ID
+    @Test public void reportIDZero()
+        throws Exception {
+        ReportLayout  layout  = layout(ID_ZERO, 0, Control.Type.OUTPUT);
+        ReportEncoder encoder = new ReportEncoder(layout);
+        byte[]        report  = new byte[encoder.length()];
+
+        assertTrue(layout.isNumbered());
+        assertEquals(2, encoder.length());
+
+        encoder.encode(report, 0, new int[] { 0x7f });
+
+        assertArrayEquals(new byte[] { 0, 0x7f }, report);
+    }
+
+    @Test public void wideField()
+        throws Exception {
+        ReportLayout layout = layout(WIDE, 0, Control.Type.FEATURE);
+        byte[]       report = new byte[5];
+
+        assertEquals(40, layout.size(0));
+
+        new ReportEncoder(layout).encode(report, 0, new long[] { 0x123456789aL });
+
+        assertEquals(0x123456789aL, layout.decode(report, 0, new long[1])[0]);
+
+        new ReportEncoder(layout, true).encode(report, 0, new long[] { 0x123456789aL });
+
+        assertEquals(0x7fffffffL, layout.decode(report, 0, new long[1])[0]);
+
+        new ReportEncoder(layout, true).setUsage(report, 0, 0xff000002, -5L);
+
+        assertEquals(0, layout.decode(report, 0, new long[1])[0]);
+    }
+
+    @Test public void invertedRange()
+        throws Exception {
+        ReportLayout  layout  = layout(INVERTED, 0, Control.Type.OUTPUT);
+        ReportEncoder encoder = new ReportEncoder(layout, true);
+        byte[]        report  = new byte[1];
+
+        assertTrue(layout.control(0).logicalMinimum > layout.control(0).logicalMaximum);
+
+        encoder.encode(report, 0, new int[] { 300 });
+        assertEquals(255, layout.decode(report, 0, new int[1])[0]);
+
+        encoder.encode(report, 0, new int[] { -5 });
+        assertEquals(0, layout.decode(report, 0, new int[1])[0]);
+
+        encoder.encode(report, 0, new int[] { 200 });
+        assertEquals(200, layout.decode(report, 0, new int[1])[0]);
+    }
+
+    private static ReportLayout layout(String hex, int reportID, Control.Type type)
+        throws Exception {
+        return new ReportDescriptor(ReportDescriptor.fromHexString(hex)).layout(reportID, type);
+    }
+}